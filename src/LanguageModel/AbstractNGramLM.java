@@ -3,6 +3,7 @@ package LanguageModel;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
@@ -11,11 +12,15 @@ import java.util.Set;
 import java.util.logging.Logger;
 import java.util.Map.Entry;
 
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.filefilter.AbstractFileFilter;
 import org.apache.commons.lang.math.RandomUtils;
 
+import com.google.common.base.Function;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Multiset;
 import com.google.common.collect.Sets;
 import com.google.common.collect.TreeMultiset;
@@ -23,11 +28,13 @@ import com.google.common.math.DoubleMath;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
 
 import NGram.NGram;
 import Tokenizer.JavaTokenizer;
+import Trie.FrozenTrie;
 import Trie.LongTrie;
-import Trie.Trie.Node;
+import Trie.SymbolTable;
 
 
 public abstract class AbstractNGramLM {
@@ -36,12 +43,60 @@ public abstract class AbstractNGramLM {
 	private static final Logger LOGGER = Logger.getLogger(AbstractNGramLM.class
 			.getName());
 	
+	// stupid backoff factor of the maximum likelihood estimate
+	private static final double BACKOFF_WEIGHT = 0.4;
+	
 	int nGramSize;
 	
 	JavaTokenizer tokenizer;
 	
 	LongTrie<String> trie;
 	
+	// null unless enabled
+	private volatile ProbabilityCache probabilityCache;
+	
+	/**
+	 * Probabilities by n-gram symbol ids, with the trie and modification
+	 * count they were computed from.
+	 */
+	private static final class ProbabilityCache {
+		final Cache<SymbolIds, Double> cache;
+		final LongTrie<String> trie;
+		final int modificationCount;
+
+		ProbabilityCache(final Cache<SymbolIds, Double> probabilities,
+				final LongTrie<String> sourceTrie) {
+			cache = probabilities;
+			trie = sourceTrie;
+			modificationCount = sourceTrie.getModificationCount();
+		}
+	}
+	
+	/**
+	 * The symbol ids of an n-gram, as a cache key. All words that are not in
+	 * the vocabulary share one id, and they are all scored alike.
+	 */
+	private static final class SymbolIds {
+		private final int[] ids;
+		private final int hash;
+
+		SymbolIds(final int[] symbolIds) {
+			ids = symbolIds;
+			hash = Arrays.hashCode(symbolIds);
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+			return obj instanceof SymbolIds
+					&& Arrays.equals(ids, ((SymbolIds) obj).ids);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+	
 	public AbstractNGramLM() {
 		
 	}
@@ -66,10 +121,56 @@ public abstract class AbstractNGramLM {
 			final Collection<ArrayList<String>> sentenceSet,
 			final boolean addNewVocabulary);
 	
+	/**
+	 * Return the probability of the n-gram with the symbol ids [from, to),
+	 * without going through the probability cache. Ids may be NO_SYMBOL for
+	 * words that are not in the vocabulary.
+	 *
+	 * @param symbolIds
+	 * @param from
+	 * @param to
+	 * @return
+	 */
+	protected abstract double computeProbabilityFor(final int[] symbolIds,
+			final int from, final int to);
+	
 	public abstract void cutoffRare(int threshold);
 	
+	/**
+	 * Stop caching probabilities.
+	 */
+	public void disableProbabilityCache() {
+		probabilityCache = null;
+	}
+	
+	/**
+	 * Cache up to maximumSize probabilities, evicting the least recently used
+	 * ones. The cache is emptied whenever the trie changes.
+	 *
+	 * @param maximumSize
+	 */
+	public void enableProbabilityCache(final long maximumSize) {
+		checkArgument(maximumSize > 0);
+		final Cache<SymbolIds, Double> cache = CacheBuilder.newBuilder()
+				.maximumSize(maximumSize).recordStats().build();
+		probabilityCache = new ProbabilityCache(cache, trie);
+	}
+	
+	/**
+	 * Freeze the underlying trie. The model can still be queried, but no
+	 * n-gram can be added or removed any more.
+	 */
+	public void freeze() {
+		trie.freeze();
+	}
+	
 	public double getAbsoluteEntropy(final File file) throws IOException {
-		return getAbsoluteEntropy(FileUtils.readFileToString(file));
+		if (file.length() == 0) {
+			return 0;
+		}
+		final StreamingScorer scorer = newStreamingScorer();
+		scorer.nextAll(getTokenizer().getTokenCursor(file));
+		return scorer.getLogProb();
 	}
 	
 	public double getAbsoluteEntropy(final String fileContent) {
@@ -77,11 +178,11 @@ public abstract class AbstractNGramLM {
 		if (code.length == 0) {
 			return 0;
 		}
-		ArrayList<String> tokens = getTokenizer().tokenList(code);
-		if (tokens.isEmpty()) {
+		final int[] ids = getTokenIds(code);
+		if (ids.length == 0) {
 			return 0;
 		}
-		double sentenceProb = getLogProbOfSentence(tokens);
+		double sentenceProb = getLogProbOfSymbols(ids);
 
 		return sentenceProb;
 	}
@@ -101,7 +202,7 @@ public abstract class AbstractNGramLM {
 		return namings;
 	}
 	
-	public Set<String> getAlternativesForNGram(LongTrie<String> globalTrie, NGram<String> ngram, String tokenToSubstitute) {
+	public Set<String> getAlternativesForNGram(LongTrie<String> globalTrie, NGram<String> ngram, final String tokenToSubstitute) {
 		// First get the n-gram up to the wildcard
 		NGram<String> prefix = ngram;
 		while (!prefix.get(prefix.size() - 1).contains(tokenToSubstitute)) {
@@ -109,12 +210,6 @@ public abstract class AbstractNGramLM {
 		}
 		prefix = prefix.prefix(); // Remove the substitute token
 
-		// Then get the node that has as children all possible names
-		Node<Long> sNode = globalTrie.getNGramNodeForInput(prefix, false);
-		if (sNode == null) {
-			return Collections.emptySet();
-		}
-
 		// Then for each child construct one ngram replacing the wildcard
 		// unless this is the "last" N
 		Set<String> renamings = Sets.newTreeSet();
@@ -122,29 +217,41 @@ public abstract class AbstractNGramLM {
 
 			int prefixSize = prefix.size();
 			int ngramSize = ngram.size();
-			NGram<String> suffix = new NGram<String>(ngram, prefixSize + 1, ngramSize);
+			final NGram<String> suffix = new NGram<String>(ngram, prefixSize + 1, ngramSize);
 
-			for (Map.Entry<Long, Node<Long>> entry : sNode.children.entrySet()) {
-				String token = globalTrie
-						.getSymbolFromKey(entry.getKey());
-				NGram<String> replacedNgramSuffix = NGram
-						.substituteTokenWith(suffix, tokenToSubstitute, token);
-				Node<Long> fNode = globalTrie.getNGramNodeForInput(replacedNgramSuffix, false, entry.getValue());
-				if (fNode != null) {
-					renamings.add(token);
-				}
+			// Only the part of the suffix before any other wildcard is the
+			// same for every candidate
+			int fixedSize = 0;
+			while (fixedSize < suffix.size()
+					&& !suffix.get(fixedSize).contains(tokenToSubstitute)) {
+				fixedSize++;
 			}
+			final boolean suffixIsFixed = fixedSize == suffix.size();
+			final NGram<String> fixedSuffix = suffixIsFixed ? suffix
+					: new NGram<String>(suffix.toList(), 0, fixedSize);
+
+			renamings.addAll(globalTrie.getProductionsBetween(prefix,
+					fixedSuffix, suffixIsFixed ? null
+							: new Function<String, NGram<String>>() {
+								@Override
+								public NGram<String> apply(final String token) {
+									return NGram.substituteTokenWith(suffix,
+											tokenToSubstitute, token);
+								}
+							}));
 		} else {
-			for (Long key : sNode.children.keySet()) {
-				String token = globalTrie.getSymbolFromKey(key);
-				renamings.add(token);
-			}
+			renamings.addAll(globalTrie.getProductionsFollowedBy(prefix, null));
 		}
 		return renamings;
 	}
 	
 	public double getExtrinsticEntropy(final File file) throws IOException {
-		return getExtrinsticEntropy(FileUtils.readFileToString(file));
+		if (file.length() == 0) {
+			return 0;
+		}
+		final StreamingScorer scorer = newStreamingScorer();
+		scorer.nextAll(getTokenizer().getTokenCursor(file));
+		return scorer.getLogProb() / (scorer.getTokenCount() - 1.);
 	}
 	
 	public double getExtrinsticEntropy(final String fileContent) {
@@ -152,13 +259,13 @@ public abstract class AbstractNGramLM {
 		if (code.length == 0) {
 			return 0;
 		}
-		ArrayList<String> tokens = getTokenizer().tokenList(code);
-		if (tokens.isEmpty()) {
+		final int[] ids = getTokenIds(code);
+		if (ids.length == 0) {
 			return 0;
 		}
-		double sentenceProb = getLogProbOfSentence(tokens);
+		double sentenceProb = getLogProbOfSymbols(ids);
 
-		return sentenceProb / (tokens.size() - 1.);
+		return sentenceProb / (ids.length - 1.);
 	}
 	
 	public ArrayList<Double> getLogProbDistOfSentence(String fileContent) {
@@ -168,66 +275,159 @@ public abstract class AbstractNGramLM {
 		if (code.length == 0) {
 			return logProbDist;
 		}
-		ArrayList<String> tokens = getTokenizer().tokenList(code);
-		if (tokens.isEmpty()) {
-			return logProbDist;
-		}
-
-		for (int i = 0; i < tokens.size(); ++i) {
-			NGram<String> ngram = new NGram<String>(i, tokens, nGramSize);
-			if (ngram.size() > 1) {
-				double prob = getProbabilityFor(ngram);
-				checkArgument(prob > 0);
-				checkArgument(!Double.isInfinite(prob));
-				logProbDist.add(DoubleMath.log2(prob));
+		final int[] ids = getTokenIds(code);
+		for (int i = 0; i < ids.length; ++i) {
+			final int from = Math.max(0, i - nGramSize + 1);
+			if (i + 1 - from > 1) {
+				logProbDist.add(getLogProb(ids, from, i + 1));
 			}
 		}
 		return logProbDist;
 	}
 	
+	/**
+	 * Return the log2 probability of the n-gram with the symbol ids [from,
+	 * to). Nothing is allocated unless the probability cache is enabled.
+	 *
+	 * @param symbolIds
+	 *            ids from {@link LongTrie#getSymbolIds}
+	 * @param from
+	 * @param to
+	 * @return
+	 */
+	public double getLogProb(final int[] symbolIds, final int from,
+			final int to) {
+		final double prob = getProbabilityFor(symbolIds, from, to);
+		checkArgument(prob > 0);
+		checkArgument(!Double.isInfinite(prob));
+		return DoubleMath.log2(prob);
+	}
+	
 	public double getLogProbOfSentence(ArrayList<String> sentence){
+		return getLogProbOfSymbols(trie.getSymbolIds(new NGram<String>(sentence), false));
+	}
+	
+	// the tokens of the code as symbol ids, NO_SYMBOL if not in the vocabulary
+	private int[] getTokenIds(final char[] code) {
+		return getTokenizer().getTokenIds(code, trie.getSymbolTable(),
+				SymbolTable.NO_SYMBOL).symbolIds;
+	}
+	
+	private double getLogProbOfSymbols(final int[] ids) {
 		double logProb = 0;
-		for (int i = 0; i < sentence.size(); ++i){
-			NGram<String> ngram = new NGram<String>(i, sentence, nGramSize);
-			if (ngram.size() > 1) {
-				final double prob = getProbabilityFor(ngram);
-				checkArgument(prob > 0);
-				checkArgument(!Double.isInfinite(prob));
-				logProb += DoubleMath.log2(prob);
+		for (int i = 0; i < ids.length; ++i){
+			final int from = Math.max(0, i - nGramSize + 1);
+			if (i + 1 - from > 1) {
+				logProb += getLogProb(ids, from, i + 1);
 			}
 		}
 		return logProb;
 	}
 	
+	/**
+	 * Return a scorer that takes tokens one at a time and gives the same log
+	 * probabilities as {@link #getLogProbOfSentence}, without holding the
+	 * whole token list.
+	 */
+	public StreamingScorer newStreamingScorer() {
+		return new StreamingScorer(this);
+	}
+	
 	public double getMLProbabilityFor(NGram<String> ngram, boolean useUNKs) {
 		checkNotNull(ngram);
-		if (ngram.size() == 1) {
-			ngram = trie.substituteWordsToUNK(ngram);
-		}
-		final long thisNgramCount = trie.getCount(ngram, ngram.size() == 1,
-				true);
-
-		if (thisNgramCount > 0) {
-			final long productionCount = trie.getCount(ngram.prefix(),
-					ngram.size() == 1, false);
-			checkArgument(productionCount >= thisNgramCount);
-
-			final double mlProb = ((double) thisNgramCount)
-					/ ((double) productionCount);
-			checkArgument(!Double.isInfinite(mlProb));
-			return mlProb;
-		} else {
-			checkArgument(ngram.size() > 1);
-			return 0.4 * getProbabilityFor(ngram.suffix());
-
-		}
+		final int[] ids = trie.getSymbolIds(ngram, false);
+		return getMLProbabilityFor(ids, 0, ids.length);
+	}
+	
+	/**
+	 * Return the maximum likelihood probability of the n-gram with the symbol
+	 * ids [from, to), backing off to shorter n-grams by a constant factor.
+	 * Unigrams of words that are not in the vocabulary are counted as UNK. All
+	 * the backoff orders are resolved in one lookup, without going through
+	 * the probability cache.
+	 *
+	 * @param symbolIds
+	 * @param from
+	 * @param to
+	 * @return
+	 */
+	public double getMLProbabilityFor(final int[] symbolIds, final int from,
+			final int to) {
+		checkArgument(from < to);
+		return trie.getBackoffProbability(symbolIds, from, to, BACKOFF_WEIGHT);
 	}
 	
 	public final int getN() {
 		return nGramSize;
 	}
 	
-	public abstract double getProbabilityFor(final NGram<String> ngram);
+	/**
+	 * Return the probability of the n-gram, from the probability cache if it
+	 * is enabled.
+	 *
+	 * @param ngram
+	 * @return
+	 */
+	public final double getProbabilityFor(final NGram<String> ngram) {
+		final int[] ids = trie.getSymbolIds(ngram, false);
+		return getProbabilityFor(ids, 0, ids.length);
+	}
+	
+	/**
+	 * Return the probability of the n-gram with the symbol ids [from, to),
+	 * from the probability cache if it is enabled. Nothing is allocated
+	 * unless the cache is enabled.
+	 *
+	 * @param symbolIds
+	 *            ids from {@link LongTrie#getSymbolIds}
+	 * @param from
+	 * @param to
+	 * @return
+	 */
+	public final double getProbabilityFor(final int[] symbolIds,
+			final int from, final int to) {
+		final Cache<SymbolIds, Double> cache = getValidProbabilityCache();
+		if (cache == null) {
+			return computeProbabilityFor(symbolIds, from, to);
+		}
+		final SymbolIds key = new SymbolIds(Arrays.copyOfRange(symbolIds,
+				from, to));
+		final Double cached = cache.getIfPresent(key);
+		if (cached != null) {
+			return cached;
+		}
+		final double probability = computeProbabilityFor(symbolIds, from, to);
+		cache.put(key, probability);
+		return probability;
+	}
+	
+	/**
+	 * Return the hit and miss statistics of the probability cache, or null if
+	 * it is not enabled.
+	 */
+	public CacheStats getProbabilityCacheStats() {
+		final ProbabilityCache current = probabilityCache;
+		return current == null ? null : current.cache.stats();
+	}
+	
+	// drop the cached probabilities if the trie changed since they were cached
+	private Cache<SymbolIds, Double> getValidProbabilityCache() {
+		final ProbabilityCache current = probabilityCache;
+		if (current == null) {
+			return null;
+		}
+		if (current.trie == trie
+				&& current.modificationCount == trie.getModificationCount()) {
+			return current.cache;
+		}
+		synchronized (this) {
+			if (probabilityCache == current) {
+				current.cache.invalidateAll();
+				probabilityCache = new ProbabilityCache(current.cache, trie);
+			}
+		}
+		return current.cache;
+	}
 	
 	public JavaTokenizer getTokenizer(){
 		return tokenizer;
@@ -237,6 +437,25 @@ public abstract class AbstractNGramLM {
 		return trie;
 	}
 	
+	/**
+	 * Replace this model with the one stored in the given model file. The
+	 * trie is memory mapped and frozen, so the model is ready to answer
+	 * queries as soon as the symbol table is read.
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public void load(final File file) throws IOException {
+		load(file, true);
+	}
+
+	public void load(final File file, final boolean verifyChecksum)
+			throws IOException {
+		final ModelFile model = ModelFile.read(file, verifyChecksum);
+		nGramSize = model.nGramSize;
+		trie = model.trie;
+	}
+	
 	public AbstractFileFilter modelledFilesFilter() {
 		return getTokenizer().getFileFilter();
 	}
@@ -265,8 +484,105 @@ public abstract class AbstractNGramLM {
 				"Should never reach this point. Picking random production failed.");
 	}
 	
+	/**
+	 * Return a sampler that picks tokens like {@link #pickRandom}, in
+	 * constant time and from an explicit random source. The model must be
+	 * frozen.
+	 */
+	public TokenSampler newSampler() {
+		return new TokenSampler(this);
+	}
+	
+	/**
+	 * Return the k most likely tokens after the context, most likely first.
+	 * Only the last n - 1 tokens of the context are used. The candidates are
+	 * the k most frequent children of the context at every order, from the
+	 * ranking precomputed by the frozen trie, and each is scored with
+	 * {@link #getProbabilityFor}; UNK is never suggested. The model must be
+	 * frozen.
+	 *
+	 * @param context
+	 * @param k
+	 * @return
+	 */
+	public List<Suggestion> suggestNext(final List<String> context, final int k) {
+		checkArgument(k >= 0);
+		final FrozenTrie frozen = trie.getFrozenTrie();
+		checkState(frozen != null, "The model must be frozen before it is queried");
+		
+		final int contextSize = Math.min(context.size(), nGramSize - 1);
+		final int[] ids = new int[contextSize + 1];
+		for (int i = 0; i < contextSize; i++) {
+			ids[i] = trie.getSymbolId(context.get(context.size() - contextSize + i));
+		}
+		
+		// the candidates of all the orders, without duplicates, so at most
+		// one per symbol
+		final int[] candidates = new int[(int) Math.min((long) k
+				* (contextSize + 1), trie.getSymbolTable().idLimit())];
+		final SymbolSet seen = new SymbolSet(candidates.length);
+		int nCandidates = 0;
+		for (int start = 0; start <= contextSize; start++) {
+			final int node = frozen.getTrieNodeForInput(ids, start,
+					contextSize, false, FrozenTrie.ROOT);
+			if (node == FrozenTrie.NO_NODE) {
+				continue;
+			}
+			final int nChildren = frozen.getChildCount(node);
+			int nAdded = 0;
+			for (int rank = 0; rank < nChildren && nAdded < k; rank++) {
+				final int symbol = frozen.getSymbol(getRankedChild(node, rank,
+						start == 0));
+				if (symbol == trie.getUnkSymbolId()
+						|| trie.getSymbolFromKey(symbol) == null) {
+					continue;
+				}
+				nAdded++;
+				if (seen.add(symbol)) {
+					candidates[nCandidates++] = symbol;
+				}
+			}
+		}
+		
+		final List<Suggestion> suggestions = Lists.newArrayListWithCapacity(nCandidates);
+		for (int i = 0; i < nCandidates; i++) {
+			ids[contextSize] = candidates[i];
+			suggestions.add(new Suggestion(trie.getSymbolFromKey(candidates[i]),
+					getProbabilityFor(ids, 0, contextSize + 1)));
+		}
+		Collections.sort(suggestions);
+		return suggestions.subList(0, Math.min(k, suggestions.size()));
+	}
+	
+	/**
+	 * Return the child of a context node of the frozen trie with the given
+	 * rank among the candidates of {@link #suggestNext}. By default children
+	 * are ranked by count.
+	 *
+	 * @param node
+	 * @param rank
+	 * @param longestContext
+	 *            whether the node is the longest context of the query
+	 * @return
+	 */
+	protected int getRankedChild(final int node, final int rank,
+			final boolean longestContext) {
+		return trie.getFrozenTrie().getRankedChild(node, rank);
+	}
+	
 	public abstract void removeNgram(final NGram<String> ngram);
 	
+	/**
+	 * Write the model to a versioned, checksummed binary file that can be
+	 * opened with {@link #load(File)}.
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public void save(final File file) throws IOException {
+		ModelFile.write(file, nGramSize, trie);
+	}
+	
 	public String toString() {
 		return trie.toString();
 	}
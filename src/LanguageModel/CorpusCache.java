@@ -0,0 +1,333 @@
+package LanguageModel;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import com.google.common.collect.Maps;
+
+import Tokenizer.JavaTokenizer;
+
+/**
+ * A file of already tokenized source files, so that training again on the
+ * same files does not scan them again. It holds the token codes of each file
+ * as in {@link TokenizedCorpus}, as varints, and the words they refer to:
+ *
+ * <pre>
+ * int magic, int version, int flags, int reserved, long indexOffset,
+ * the codes of every file, back to back,
+ * index: int nWords, then per word: int length, UTF-8 bytes;
+ *        int nFiles, then per file: int length, UTF-8 absolute path,
+ *        long size, long lastModified, long offset, int nTokens, int nBytes
+ * </pre>
+ *
+ * A file is served from the cache only if its path, size and modification
+ * time all match. The codes are read through memory mapped segments of the
+ * cache file. The cache holds the files of the last corpus written to it.
+ */
+class CorpusCache implements Closeable {
+
+	private static final Logger LOGGER = Logger.getLogger(CorpusCache.class
+			.getName());
+
+	static final int MAGIC = 0x41534343; // "ASCC"
+	static final int VERSION = 1;
+
+	// the tokenizer kept the comments
+	private static final int FLAG_COMMENTS = 1;
+
+	private static final int HEADER_SIZE = 24;
+
+	// the codes are mapped in segments of this many bytes
+	private static final long SEGMENT_SIZE = 1L << 30;
+
+	/**
+	 * Where the codes of a file are.
+	 */
+	private static final class Entry {
+		final long size;
+		final long lastModified;
+		final long offset;
+		final int nTokens;
+		final int nBytes;
+
+		Entry(long size, long lastModified, long offset, int nTokens,
+				int nBytes) {
+			this.size = size;
+			this.lastModified = lastModified;
+			this.offset = offset;
+			this.nTokens = nTokens;
+			this.nBytes = nBytes;
+		}
+	}
+
+	private final File file;
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private final ByteBuffer[] segments;
+	private final String[] words;
+	private final Map<String, Entry> entries;
+
+	private CorpusCache(final File file, final RandomAccessFile raf,
+			final ByteBuffer[] segments, final String[] words,
+			final Map<String, Entry> entries) {
+		this.file = file;
+		this.raf = raf;
+		this.channel = raf.getChannel();
+		this.segments = segments;
+		this.words = words;
+		this.entries = entries;
+	}
+
+	/**
+	 * Open the cache file, or return null if there is none or it cannot be
+	 * used with this tokenizer.
+	 *
+	 * @param file
+	 * @param tokenizer
+	 * @return
+	 */
+	static CorpusCache open(final File file, final JavaTokenizer tokenizer) {
+		if (!file.isFile()) {
+			return null;
+		}
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file, "r");
+			final FileChannel channel = raf.getChannel();
+			final ByteBuffer header = channel.map(MapMode.READ_ONLY, 0,
+					HEADER_SIZE);
+			if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+				throw new IOException(file + " is not a corpus cache");
+			}
+			if (header.getInt() != flags(tokenizer)) {
+				LOGGER.info("Ignoring " + file
+						+ ", written by a different tokenizer");
+				raf.close();
+				return null;
+			}
+			header.getInt(); // reserved
+			final long indexOffset = header.getLong();
+			if (indexOffset < HEADER_SIZE || indexOffset > channel.size()) {
+				throw new IOException("Truncated corpus cache " + file);
+			}
+
+			final ByteBuffer index = channel.map(MapMode.READ_ONLY,
+					indexOffset, channel.size() - indexOffset);
+			final String[] words = new String[index.getInt()];
+			for (int i = 0; i < words.length; i++) {
+				words[i] = getString(index);
+			}
+			final int nFiles = index.getInt();
+			final Map<String, Entry> entries = Maps
+					.newHashMapWithExpectedSize(nFiles);
+			for (int i = 0; i < nFiles; i++) {
+				final String path = getString(index);
+				entries.put(path, new Entry(index.getLong(), index.getLong(),
+						index.getLong(), index.getInt(), index.getInt()));
+			}
+
+			final int nSegments = (int) ((indexOffset + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+			final ByteBuffer[] segments = new ByteBuffer[nSegments];
+			for (int i = 0; i < nSegments; i++) {
+				final long start = i * SEGMENT_SIZE;
+				segments[i] = channel.map(MapMode.READ_ONLY, start,
+						Math.min(SEGMENT_SIZE, indexOffset - start));
+			}
+			LOGGER.info("Opened corpus cache " + file + " with " + nFiles
+					+ " files and " + words.length + " words");
+			return new CorpusCache(file, raf, segments, words, entries);
+		} catch (final IOException | RuntimeException e) {
+			LOGGER.warning("Ignoring unreadable corpus cache " + file + ": "
+					+ e);
+			if (raf != null) {
+				try {
+					raf.close();
+				} catch (final IOException ignored) {
+					// already failing
+				}
+			}
+			return null;
+		}
+	}
+
+	private static int flags(final JavaTokenizer tokenizer) {
+		return tokenizer.isTokenizingComments() ? FLAG_COMMENTS : 0;
+	}
+
+	private static String getString(final ByteBuffer buffer) {
+		final byte[] bytes = new byte[buffer.getInt()];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Return the codes of the file, with the word ids of the cache, or null
+	 * if the file is not cached as it is now.
+	 *
+	 * @param source
+	 * @param size
+	 *            the size of the file when it was listed
+	 * @param lastModified
+	 * @return
+	 * @throws IOException
+	 */
+	int[] getCodes(final File source, final long size,
+			final long lastModified) throws IOException {
+		final Entry entry = entries.get(source.getAbsolutePath());
+		if (entry == null || entry.size != size
+				|| entry.lastModified != lastModified) {
+			return null;
+		}
+
+		final ByteBuffer bytes;
+		final int segment = (int) (entry.offset / SEGMENT_SIZE);
+		final long segmentStart = segment * SEGMENT_SIZE;
+		int position;
+		if (entry.offset + entry.nBytes <= segmentStart
+				+ segments[segment].capacity()) {
+			bytes = segments[segment];
+			position = (int) (entry.offset - segmentStart);
+		} else {
+			// across two segments
+			bytes = channel.map(MapMode.READ_ONLY, entry.offset, entry.nBytes);
+			position = 0;
+		}
+
+		final int[] codes = new int[entry.nTokens];
+		for (int i = 0; i < codes.length; i++) {
+			int code = 0;
+			for (int shift = 0;; shift += 7) {
+				final byte b = bytes.get(position++);
+				code |= (b & 0x7f) << shift;
+				if (b >= 0) {
+					break;
+				}
+			}
+			codes[i] = code;
+		}
+		return codes;
+	}
+
+	String getWord(final int wordId) {
+		return words[wordId];
+	}
+
+	int getWordCount() {
+		return words.length;
+	}
+
+	int getFileCount() {
+		return entries.size();
+	}
+
+	/**
+	 * Write the tokenized corpus to the cache file, replacing it once the
+	 * whole file is written.
+	 *
+	 * @param file
+	 * @param tokenizer
+	 * @param corpus
+	 * @throws IOException
+	 */
+	static void write(final File file, final JavaTokenizer tokenizer,
+			final TokenizedCorpus corpus) throws IOException {
+		final File directory = file.getAbsoluteFile().getParentFile();
+		final File temporary = File.createTempFile(file.getName(), ".tmp",
+				directory);
+		try {
+			final long[] offsets = new long[corpus.size()];
+			final int[] lengths = new int[corpus.size()];
+			final int[] byteLengths = new int[corpus.size()];
+			long offset = HEADER_SIZE;
+			final DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(temporary),
+							1 << 16));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(flags(tokenizer));
+				out.writeInt(0);
+				out.writeLong(0); // index offset, written last
+				for (int i = 0; i < corpus.size(); i++) {
+					final int[] codes = corpus.getCodes(i);
+					int nBytes = 0;
+					for (final int code : codes) {
+						int rest = code;
+						while ((rest & ~0x7f) != 0) {
+							out.writeByte((rest & 0x7f) | 0x80);
+							rest >>>= 7;
+							nBytes++;
+						}
+						out.writeByte(rest);
+						nBytes++;
+					}
+					offsets[i] = offset;
+					lengths[i] = codes.length;
+					byteLengths[i] = nBytes;
+					offset += nBytes;
+				}
+
+				out.writeInt(corpus.getWordCount());
+				for (int i = 0; i < corpus.getWordCount(); i++) {
+					putString(out, corpus.getWord(i));
+				}
+				out.writeInt(corpus.size());
+				for (int i = 0; i < corpus.size(); i++) {
+					putString(out, corpus.getFile(i).getAbsolutePath());
+					out.writeLong(corpus.getFileSize(i));
+					out.writeLong(corpus.getFileLastModified(i));
+					out.writeLong(offsets[i]);
+					out.writeInt(lengths[i]);
+					out.writeInt(byteLengths[i]);
+				}
+			} finally {
+				out.close();
+			}
+			final RandomAccessFile raf = new RandomAccessFile(temporary, "rw");
+			try {
+				raf.seek(16);
+				raf.writeLong(offset);
+			} finally {
+				raf.close();
+			}
+			Files.move(temporary.toPath(), file.toPath(),
+					StandardCopyOption.REPLACE_EXISTING);
+			LOGGER.info("Wrote corpus cache " + file + " with "
+					+ corpus.size() + " files");
+		} finally {
+			if (temporary.exists() && !temporary.delete()) {
+				LOGGER.warning("Could not delete " + temporary);
+			}
+		}
+	}
+
+	private static void putString(final DataOutputStream out,
+			final String string) throws IOException {
+		final byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	@Override
+	public void close() throws IOException {
+		raf.close();
+	}
+
+	@Override
+	public String toString() {
+		return file.toString();
+	}
+}
@@ -0,0 +1,379 @@
+package LanguageModel;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.logging.Logger;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.filefilter.TrueFileFilter;
+import org.apache.commons.lang.StringEscapeUtils;
+import org.apache.commons.lang.exception.ExceptionUtils;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+
+import Tokenizer.TokenCursor;
+import Trie.SymbolTable;
+
+/**
+ * Scores whole corpora against one model, a file per task on the given
+ * executor, and streams a {@link FileScore} per file to a sink as files
+ * complete. The model is only read, so it can be shared by all the tasks; a
+ * frozen model with the probability cache enabled is the fastest.
+ *
+ * The log probabilities are those of {@link AbstractNGramLM#getLogProbDistOfSentence},
+ * computed with a {@link StreamingScorer} so that the tokens of the most
+ * surprising positions are known.
+ */
+public class CorpusScorer {
+
+	private static final Logger LOGGER = Logger.getLogger(CorpusScorer.class
+			.getName());
+
+	// files being scored or waiting for the sink at any time
+	private static final int MAX_FILES_IN_FLIGHT = 1024;
+
+	private final AbstractNGramLM model;
+
+	private final ExecutorService executor;
+
+	private final int topK;
+
+	/**
+	 * A token of a file and its log2 probability.
+	 */
+	public static class SurprisingToken {
+		public final int position;
+
+		public final String token;
+
+		public final double logProb;
+
+		public SurprisingToken(int position, String token, double logProb) {
+			this.position = position;
+			this.token = token;
+			this.logProb = logProb;
+		}
+
+		@Override
+		public String toString() {
+			return position + ":" + token + ":"
+					+ String.format("%.2f", logProb);
+		}
+	}
+
+	/**
+	 * The score of a single file.
+	 */
+	public static class FileScore {
+		public final File file;
+
+		// tokens of the file, including the sentence start and end
+		public final long nTokens;
+
+		public final double logProb;
+
+		// the lowest log probabilities, lowest first
+		public final List<SurprisingToken> surprisingTokens;
+
+		public FileScore(File file, long nTokens, double logProb,
+				List<SurprisingToken> surprisingTokens) {
+			this.file = file;
+			this.nTokens = nTokens;
+			this.logProb = logProb;
+			this.surprisingTokens = surprisingTokens;
+		}
+
+		/**
+		 * The cross entropy in bits per token, i.e. minus
+		 * {@link AbstractNGramLM#getExtrinsticEntropy}.
+		 */
+		public double getCrossEntropy() {
+			return nTokens > 1 ? -logProb / (nTokens - 1.) : 0;
+		}
+	}
+
+	/**
+	 * Totals over all the scored files.
+	 */
+	public static class Summary {
+		public final int nFiles;
+
+		public final long nTokens;
+
+		public final double seconds;
+
+		public Summary(int nFiles, long nTokens, double seconds) {
+			this.nFiles = nFiles;
+			this.nTokens = nTokens;
+			this.seconds = seconds;
+		}
+
+		public double getTokensPerSecond() {
+			return nTokens / seconds;
+		}
+
+		@Override
+		public String toString() {
+			return nFiles + " files, " + nTokens + " tokens in " + seconds
+					+ "s (" + (long) getTokensPerSecond() + " tokens/s)";
+		}
+	}
+
+	/**
+	 * Where the file scores go. Scores are written from the thread that
+	 * called {@link CorpusScorer#score}, in the order files complete.
+	 */
+	public interface ScoreSink extends Closeable {
+		void write(FileScore score) throws IOException;
+	}
+
+	private static final Comparator<SurprisingToken> BY_LOG_PROB = new Comparator<SurprisingToken>() {
+		@Override
+		public int compare(final SurprisingToken t1, final SurprisingToken t2) {
+			return Double.compare(t1.logProb, t2.logProb);
+		}
+	};
+
+	/**
+	 * @param model
+	 * @param executor
+	 *            runs one task per file; it is not shut down
+	 * @param topK
+	 *            the number of most surprising tokens kept per file
+	 */
+	public CorpusScorer(final AbstractNGramLM model,
+			final ExecutorService executor, final int topK) {
+		checkArgument(topK >= 0);
+		this.model = checkNotNull(model);
+		this.executor = checkNotNull(executor);
+		this.topK = topK;
+	}
+
+	/**
+	 * Return the files under the directory that the model can score.
+	 *
+	 * @param directory
+	 * @return
+	 */
+	public Collection<File> listModelledFiles(final File directory) {
+		return FileUtils.listFiles(directory, model.modelledFilesFilter(),
+				TrueFileFilter.INSTANCE);
+	}
+
+	/**
+	 * Score all the modelled files under the directory.
+	 *
+	 * @param directory
+	 * @param sink
+	 * @return
+	 * @throws IOException
+	 */
+	public Summary score(final File directory, final ScoreSink sink)
+			throws IOException {
+		return score(listModelledFiles(directory), sink);
+	}
+
+	/**
+	 * Score the files, writing each score to the sink as soon as it is ready.
+	 * Files that cannot be read are logged and skipped. The sink is not
+	 * closed.
+	 *
+	 * @param files
+	 * @param sink
+	 * @return
+	 * @throws IOException
+	 *             if the sink fails
+	 */
+	public Summary score(final Collection<File> files, final ScoreSink sink)
+			throws IOException {
+		final CompletionService<FileScore> completion = new ExecutorCompletionService<FileScore>(
+				executor);
+		final long start = System.nanoTime();
+		int nFiles = 0;
+		long nTokens = 0;
+		int inFlight = 0;
+		try {
+			for (final File file : files) {
+				if (inFlight == MAX_FILES_IN_FLIGHT) {
+					final FileScore score = completion.take().get();
+					inFlight--;
+					if (score != null) {
+						sink.write(score);
+						nFiles++;
+						nTokens += score.nTokens;
+					}
+				}
+				completion.submit(new Callable<FileScore>() {
+					@Override
+					public FileScore call() {
+						try {
+							return scoreFile(file);
+						} catch (final IOException e) {
+							LOGGER.warning(ExceptionUtils.getFullStackTrace(e));
+							return null;
+						}
+					}
+				});
+				inFlight++;
+			}
+			for (; inFlight > 0; inFlight--) {
+				final FileScore score = completion.take().get();
+				if (score != null) {
+					sink.write(score);
+					nFiles++;
+					nTokens += score.nTokens;
+				}
+			}
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Scoring interrupted");
+		} catch (final ExecutionException e) {
+			Throwables.propagateIfPossible(e.getCause(), IOException.class);
+			throw new RuntimeException(e.getCause());
+		}
+
+		final Summary summary = new Summary(nFiles, nTokens,
+				(System.nanoTime() - start) / 1E9);
+		LOGGER.info("Scored " + summary);
+		return summary;
+	}
+
+	/**
+	 * Score a single file on the calling thread.
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public FileScore scoreFile(final File file) throws IOException {
+		final TokenCursor tokens = model.getTokenizer().getTokenCursor(file);
+		final SymbolTable<String> symbols = model.getTrie().getSymbolTable();
+		final StreamingScorer scorer = model.newStreamingScorer();
+
+		// the topK highest of the lowest log probabilities is at the head
+		final PriorityQueue<SurprisingToken> surprising = new PriorityQueue<SurprisingToken>(
+				Math.max(1, topK), Collections.reverseOrder(BY_LOG_PROB));
+		for (int i = 0; tokens.next(); i++) {
+			final double logProb = scorer.nextSymbol(tokens
+					.getSymbolId(symbols));
+			if (scorer.getTokenCount() < 2 || model.getN() < 2 || topK == 0) {
+				continue;
+			}
+			// only the surprising tokens are made into Strings
+			if (surprising.size() < topK) {
+				surprising.add(new SurprisingToken(i, tokens.getToken(),
+						logProb));
+			} else if (logProb < surprising.peek().logProb) {
+				surprising.poll();
+				surprising.add(new SurprisingToken(i, tokens.getToken(),
+						logProb));
+			}
+		}
+
+		final ArrayList<SurprisingToken> surprisingTokens = Lists
+				.newArrayList(surprising);
+		Collections.sort(surprisingTokens, BY_LOG_PROB);
+		return new FileScore(file, scorer.getTokenCount(),
+				scorer.getLogProb(), surprisingTokens);
+	}
+
+	/**
+	 * A sink that writes one CSV line per file, after a header line. The
+	 * surprising tokens are a single field of {@code position:token:logProb}
+	 * entries separated by spaces.
+	 *
+	 * @param out
+	 * @return
+	 * @throws IOException
+	 */
+	public static ScoreSink csvSink(final Writer out) throws IOException {
+		out.write("file,tokens,logProb,crossEntropy,surprisingTokens\n");
+		return new ScoreSink() {
+			@Override
+			public void write(final FileScore score) throws IOException {
+				final StringBuilder surprising = new StringBuilder();
+				for (final SurprisingToken token : score.surprisingTokens) {
+					if (surprising.length() > 0) {
+						surprising.append(' ');
+					}
+					surprising.append(token);
+				}
+				out.write(StringEscapeUtils.escapeCsv(score.file.getPath())
+						+ "," + score.nTokens + "," + score.logProb + ","
+						+ score.getCrossEntropy() + ","
+						+ StringEscapeUtils.escapeCsv(surprising.toString())
+						+ "\n");
+			}
+
+			@Override
+			public void close() throws IOException {
+				out.close();
+			}
+		};
+	}
+
+	/**
+	 * A sink that writes one JSON object per line and file.
+	 *
+	 * @param out
+	 * @return
+	 */
+	public static ScoreSink jsonLinesSink(final Writer out) {
+		return new ScoreSink() {
+			@Override
+			public void write(final FileScore score) throws IOException {
+				final StringBuilder line = new StringBuilder();
+				line.append("{\"file\":\"")
+						.append(StringEscapeUtils.escapeJava(score.file
+								.getPath())).append("\",\"tokens\":")
+						.append(score.nTokens).append(",\"logProb\":")
+						.append(jsonNumber(score.logProb))
+						.append(",\"crossEntropy\":")
+						.append(jsonNumber(score.getCrossEntropy()))
+						.append(",\"surprisingTokens\":[");
+				for (int i = 0; i < score.surprisingTokens.size(); i++) {
+					final SurprisingToken token = score.surprisingTokens.get(i);
+					if (i > 0) {
+						line.append(',');
+					}
+					line.append("{\"position\":").append(token.position)
+							.append(",\"token\":\"")
+							.append(StringEscapeUtils.escapeJava(token.token))
+							.append("\",\"logProb\":")
+							.append(jsonNumber(token.logProb)).append('}');
+				}
+				line.append("]}\n");
+				out.write(line.toString());
+			}
+
+			@Override
+			public void close() throws IOException {
+				out.close();
+			}
+		};
+	}
+
+	// JSON has no infinities
+	private static String jsonNumber(final double value) {
+		return Double.isNaN(value) || Double.isInfinite(value) ? "null"
+				: Double.toString(value);
+	}
+}
@@ -0,0 +1,636 @@
+package LanguageModel;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.filefilter.TrueFileFilter;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+
+import Tokenizer.JavaTokenizer;
+import Tokenizer.TokenCursor;
+
+/**
+ * The java files of a corpus, as {@link JavaTokenizer#FileFilter} picks
+ * them, read from directories, zip or jar archives and tar archives, gzipped
+ * or not, without extracting the archives to disk. A directory also gives
+ * the java files of the archives under it.
+ *
+ * {@link #forEachEntry} hands the entries to a fork-join pool as they are
+ * read. Files and zip entries are read, inflated and decoded on the
+ * workers; a tar can only be read in order, so its entries are read by the
+ * calling thread and decoded on the workers. Reading waits while the entries
+ * handed out and not yet handled add up to more than a bound of bytes.
+ */
+public abstract class CorpusSource {
+
+	private static final Logger LOGGER = Logger.getLogger(CorpusSource.class
+			.getName());
+
+	// bytes of the entries being handled at any time
+	public static final long MAX_BUFFERED_BYTES = 64L << 20;
+
+	private static final int TAR_BLOCK = 512;
+
+	/**
+	 * A java source of the corpus.
+	 */
+	public abstract static class Entry {
+		public final String name;
+
+		// in bytes, or -1 if unknown
+		public final long size;
+
+		Entry(final String name, final long size) {
+			this.name = name;
+			this.size = size;
+		}
+
+		/**
+		 * Read and decode the entry, in the platform's encoding as for files,
+		 * into a cursor over its tokens. Entries are read once, on any thread.
+		 *
+		 * @param tokenizer
+		 * @return
+		 * @throws IOException
+		 */
+		public abstract TokenCursor getTokenCursor(JavaTokenizer tokenizer)
+				throws IOException;
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+
+	/**
+	 * Handles the entries of a source, on the workers of a pool.
+	 */
+	public interface EntryHandler {
+		/**
+		 * @param index
+		 *            the number of the entry, in the order the entries are
+		 *            read
+		 * @param entry
+		 * @throws IOException
+		 */
+		void handle(int index, Entry entry) throws IOException;
+	}
+
+	/**
+	 * Takes the entries of a source as they are read.
+	 */
+	interface EntrySink {
+		void accept(Entry entry) throws IOException;
+
+		/**
+		 * Wait until the entries accepted so far are handled, e.g. before
+		 * closing the archive they are read from.
+		 *
+		 * @throws IOException
+		 */
+		void await() throws IOException;
+	}
+
+	CorpusSource() {
+	}
+
+	/**
+	 * Return the source of a directory, an archive or a single java file.
+	 *
+	 * @param file
+	 * @return
+	 */
+	public static CorpusSource of(final File file) {
+		if (file.isDirectory()) {
+			return new DirectorySource(file);
+		}
+		final String name = file.getName();
+		if (name.endsWith(".zip") || name.endsWith(".jar")) {
+			return new ZipSource(file);
+		}
+		if (name.endsWith(".tar")) {
+			return new TarSource(file, false);
+		}
+		if (name.endsWith(".tar.gz") || name.endsWith(".tgz")) {
+			return new TarSource(file, true);
+		}
+		checkArgument(JavaTokenizer.FileFilter.accept(file),
+				"%s is not a directory, an archive or a java file", file);
+		return new FileSource(file);
+	}
+
+	/**
+	 * Return the source of all the entries of the directories, archives and
+	 * java files, one after the other.
+	 *
+	 * @param files
+	 * @return
+	 */
+	public static CorpusSource of(final Collection<File> files) {
+		final List<CorpusSource> sources = Lists.newArrayList();
+		for (final File file : files) {
+			sources.add(of(file));
+		}
+		return new ListSource(sources);
+	}
+
+	static boolean isArchive(final File file) {
+		final String name = file.getName();
+		return name.endsWith(".zip") || name.endsWith(".jar")
+				|| name.endsWith(".tar") || name.endsWith(".tar.gz")
+				|| name.endsWith(".tgz");
+	}
+
+	private static boolean isJavaFile(final String entryName) {
+		return JavaTokenizer.FileFilter.accept(new File(entryName));
+	}
+
+	/**
+	 * Read the entries, in order, into the sink.
+	 *
+	 * @param sink
+	 * @throws IOException
+	 */
+	abstract void read(EntrySink sink) throws IOException;
+
+	/**
+	 * Hand every entry to the handler on the pool, see
+	 * {@link #forEachEntry(EntryHandler, ForkJoinPool, long)}.
+	 *
+	 * @param handler
+	 * @param pool
+	 * @return the number of entries
+	 * @throws IOException
+	 */
+	public int forEachEntry(final EntryHandler handler, final ForkJoinPool pool)
+			throws IOException {
+		return forEachEntry(handler, pool, MAX_BUFFERED_BYTES);
+	}
+
+	/**
+	 * Read the entries on the calling thread and hand each one to the
+	 * handler on the pool, returning once all of them are handled. Reading
+	 * waits while the entries not yet handled are more than maxBufferedBytes
+	 * long, so at most that many bytes, plus those of the entry being read
+	 * from a tar, are held at any time. Reading stops at the first failure of
+	 * the handler, which is thrown once the entries handed out are handled.
+	 *
+	 * @param handler
+	 * @param pool
+	 * @param maxBufferedBytes
+	 * @return the number of entries
+	 * @throws IOException
+	 */
+	public int forEachEntry(final EntryHandler handler,
+			final ForkJoinPool pool, final long maxBufferedBytes)
+			throws IOException {
+		checkArgument(maxBufferedBytes > 0);
+		final long start = System.nanoTime();
+		final HandlingSink sink = new HandlingSink(handler, pool,
+				(int) Math.min(maxBufferedBytes, Integer.MAX_VALUE));
+		try {
+			read(sink);
+		} finally {
+			sink.await();
+		}
+		sink.rethrow();
+		LOGGER.info("Read " + sink.nEntries + " entries of " + this + " in "
+				+ (System.nanoTime() - start) / 1E9 + "s");
+		return sink.nEntries;
+	}
+
+	/**
+	 * Submits each entry to the pool, holding back while too many bytes are
+	 * in flight.
+	 */
+	private static final class HandlingSink implements EntrySink {
+		private final EntryHandler handler;
+		private final ForkJoinPool pool;
+		private final int maxPermits;
+		private final Semaphore buffered;
+		private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+		private int nEntries = 0;
+		// entries submitted and not handled yet, guarded by this
+		private int pending = 0;
+
+		HandlingSink(final EntryHandler handler, final ForkJoinPool pool,
+				final int maxBufferedBytes) {
+			this.handler = handler;
+			this.pool = pool;
+			maxPermits = maxBufferedBytes;
+			buffered = new Semaphore(maxBufferedBytes);
+		}
+
+		@Override
+		public void accept(final Entry entry) throws IOException {
+			rethrow();
+			// an entry longer than the bound takes all of it
+			final int weight = (int) Math.max(1,
+					Math.min(entry.size, maxPermits));
+			try {
+				buffered.acquire(weight);
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted before "
+						+ entry.name);
+			}
+			final int index = nEntries++;
+			synchronized (this) {
+				pending++;
+			}
+			pool.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						handler.handle(index, entry);
+					} catch (final IOException | RuntimeException | Error e) {
+						failure.compareAndSet(null, e);
+					} finally {
+						buffered.release(weight);
+						done();
+					}
+				}
+			});
+		}
+
+		private synchronized void done() {
+			if (--pending == 0) {
+				notifyAll();
+			}
+		}
+
+		@Override
+		public synchronized void await() throws IOException {
+			try {
+				while (pending > 0) {
+					wait();
+				}
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted with " + pending
+						+ " entries being handled");
+			}
+		}
+
+		void rethrow() throws IOException {
+			final Throwable e = failure.get();
+			if (e != null) {
+				Throwables.propagateIfPossible(e, IOException.class);
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	private static final class FileEntry extends Entry {
+		private final File file;
+
+		FileEntry(final File file) {
+			super(file.getAbsolutePath(), file.length());
+			this.file = file;
+		}
+
+		@Override
+		public TokenCursor getTokenCursor(final JavaTokenizer tokenizer)
+				throws IOException {
+			return tokenizer.getTokenCursor(file);
+		}
+	}
+
+	// inflated from the zip file when it is read
+	private static final class ZipFileEntry extends Entry {
+		private final ZipFile zip;
+		private final ZipEntry entry;
+
+		ZipFileEntry(final File file, final ZipFile zip, final ZipEntry entry) {
+			super(file.getAbsolutePath() + "!/" + entry.getName(), entry
+					.getSize());
+			this.zip = zip;
+			this.entry = entry;
+		}
+
+		@Override
+		public TokenCursor getTokenCursor(final JavaTokenizer tokenizer)
+				throws IOException {
+			final InputStream in = zip.getInputStream(entry);
+			try {
+				final byte[] content = size >= 0 ? readFully(in, size, name)
+						: ByteStreams.toByteArray(in);
+				return tokenizer.getTokenCursor(ByteBuffer.wrap(content));
+			} finally {
+				in.close();
+			}
+		}
+	}
+
+	// already read from a tar
+	private static final class BytesEntry extends Entry {
+		private final byte[] content;
+
+		BytesEntry(final String name, final byte[] content) {
+			super(name, content.length);
+			this.content = content;
+		}
+
+		@Override
+		public TokenCursor getTokenCursor(final JavaTokenizer tokenizer)
+				throws IOException {
+			return tokenizer.getTokenCursor(ByteBuffer.wrap(content));
+		}
+	}
+
+	private static byte[] readFully(final InputStream in, final long size,
+			final String name) throws IOException {
+		if (size > Integer.MAX_VALUE - 8) {
+			throw new IOException(name + " is too large to tokenize");
+		}
+		final byte[] content = new byte[(int) size];
+		ByteStreams.readFully(in, content);
+		return content;
+	}
+
+	private static final class FileSource extends CorpusSource {
+		private final File file;
+
+		FileSource(final File file) {
+			this.file = file;
+		}
+
+		@Override
+		void read(final EntrySink sink) throws IOException {
+			sink.accept(new FileEntry(file));
+		}
+
+		@Override
+		public String toString() {
+			return file.toString();
+		}
+	}
+
+	// the java files and archives under a directory, in the order of their
+	// paths
+	private static final class DirectorySource extends CorpusSource {
+		private final File directory;
+
+		DirectorySource(final File directory) {
+			this.directory = directory;
+		}
+
+		@Override
+		void read(final EntrySink sink) throws IOException {
+			final List<File> files = Lists.newArrayList(FileUtils.listFiles(
+					directory, TrueFileFilter.INSTANCE,
+					TrueFileFilter.INSTANCE));
+			Collections.sort(files);
+			for (final File file : files) {
+				if (isArchive(file)) {
+					of(file).read(sink);
+				} else if (JavaTokenizer.FileFilter.accept(file)) {
+					sink.accept(new FileEntry(file));
+				}
+			}
+		}
+
+		@Override
+		public String toString() {
+			return directory.toString();
+		}
+	}
+
+	private static final class ListSource extends CorpusSource {
+		private final List<CorpusSource> sources;
+
+		ListSource(final List<CorpusSource> sources) {
+			this.sources = sources;
+		}
+
+		@Override
+		void read(final EntrySink sink) throws IOException {
+			for (final CorpusSource source : sources) {
+				source.read(sink);
+			}
+		}
+
+		@Override
+		public String toString() {
+			return sources.size() == 1 ? sources.get(0).toString() : sources
+					.size() + " sources";
+		}
+	}
+
+	private static final class ZipSource extends CorpusSource {
+		private final File file;
+
+		ZipSource(final File file) {
+			this.file = file;
+		}
+
+		@Override
+		void read(final EntrySink sink) throws IOException {
+			final ZipFile zip = new ZipFile(file);
+			try {
+				final Enumeration<? extends ZipEntry> entries = zip.entries();
+				while (entries.hasMoreElements()) {
+					final ZipEntry entry = entries.nextElement();
+					if (!entry.isDirectory() && isJavaFile(entry.getName())) {
+						sink.accept(new ZipFileEntry(file, zip, entry));
+					}
+				}
+			} finally {
+				// the entries are inflated by the workers
+				try {
+					sink.await();
+				} finally {
+					zip.close();
+				}
+			}
+		}
+
+		@Override
+		public String toString() {
+			return file.toString();
+		}
+	}
+
+	/**
+	 * Reads the regular files of a ustar, GNU or pax tar, with the long names
+	 * of GNU and pax headers.
+	 */
+	private static final class TarSource extends CorpusSource {
+		private final File file;
+		private final boolean gzipped;
+
+		TarSource(final File file, final boolean gzipped) {
+			this.file = file;
+			this.gzipped = gzipped;
+		}
+
+		@Override
+		void read(final EntrySink sink) throws IOException {
+			InputStream in = new BufferedInputStream(new FileInputStream(file),
+					1 << 16);
+			try {
+				if (gzipped) {
+					in = new GZIPInputStream(in, 1 << 16);
+				}
+				final byte[] header = new byte[TAR_BLOCK];
+				// the name of the next entry, from a GNU or pax header
+				String longName = null;
+				while (ByteStreams.read(in, header, 0, TAR_BLOCK) == TAR_BLOCK
+						&& !isZeros(header)) {
+					checkChecksum(header);
+					final long size = getSize(header);
+					final long padding = (TAR_BLOCK - size % TAR_BLOCK)
+							% TAR_BLOCK;
+					final byte type = header[156];
+					if (type == 'L' || type == 'x') {
+						final byte[] data = readFully(in, size, file.toString());
+						ByteStreams.skipFully(in, padding);
+						final String name = type == 'L' ? getString(data, 0,
+								data.length) : getPaxPath(data);
+						if (name != null) {
+							longName = name;
+						}
+						continue;
+					}
+
+					final String name = longName != null ? longName
+							: getName(header);
+					longName = null;
+					// regular files, old style, new style and contiguous
+					if ((type == '0' || type == 0 || type == '7')
+							&& isJavaFile(name)) {
+						final byte[] content = readFully(in, size, name);
+						ByteStreams.skipFully(in, padding);
+						sink.accept(new BytesEntry(file.getAbsolutePath()
+								+ "!/" + name, content));
+					} else if (type != '1' && type != '2' && type != '3'
+							&& type != '4' && type != '5' && type != '6') {
+						// links, devices and directories have no data
+						ByteStreams.skipFully(in, size + padding);
+					}
+				}
+			} finally {
+				in.close();
+			}
+		}
+
+		private static boolean isZeros(final byte[] block) {
+			for (final byte b : block) {
+				if (b != 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private void checkChecksum(final byte[] header) throws IOException {
+			long sum = 0;
+			for (int i = 0; i < TAR_BLOCK; i++) {
+				// the checksum field counts as spaces
+				sum += i >= 148 && i < 156 ? ' ' : header[i] & 0xff;
+			}
+			if (sum != getOctal(header, 148, 8)) {
+				throw new IOException(file + " is not a tar archive, or is corrupt");
+			}
+		}
+
+		private static long getSize(final byte[] header) {
+			if ((header[124] & 0x80) != 0) {
+				// GNU base-256 for sizes of 8GB and more
+				long size = 0;
+				for (int i = 125; i < 136; i++) {
+					size = size << 8 | (header[i] & 0xff);
+				}
+				return size;
+			}
+			return getOctal(header, 124, 12);
+		}
+
+		private static long getOctal(final byte[] header, final int from,
+				final int length) {
+			long value = 0;
+			for (int i = from; i < from + length; i++) {
+				final byte b = header[i];
+				if (b >= '0' && b <= '7') {
+					value = value << 3 | (b - '0');
+				} else if (b == 0 || (b == ' ' && value > 0)) {
+					break;
+				}
+			}
+			return value;
+		}
+
+		private static String getName(final byte[] header) {
+			final String name = getString(header, 0, 100);
+			final boolean ustar = header[257] == 'u' && header[258] == 's'
+					&& header[259] == 't' && header[260] == 'a'
+					&& header[261] == 'r';
+			final String prefix = ustar ? getString(header, 345, 155) : "";
+			return prefix.isEmpty() ? name : prefix + "/" + name;
+		}
+
+		// up to the first NUL
+		private static String getString(final byte[] bytes, final int from,
+				final int length) {
+			int end = from;
+			while (end < from + length && bytes[end] != 0) {
+				end++;
+			}
+			return new String(bytes, from, end - from, StandardCharsets.UTF_8);
+		}
+
+		// the path of the records "length key=value\n" of a pax header, or
+		// null
+		private static String getPaxPath(final byte[] data) {
+			int position = 0;
+			while (position < data.length) {
+				int space = position;
+				int length = 0;
+				while (space < data.length && data[space] >= '0'
+						&& data[space] <= '9') {
+					length = 10 * length + data[space++] - '0';
+				}
+				if (length <= 0 || space >= data.length
+						|| position + length > data.length) {
+					return null;
+				}
+				final String record = new String(data, space + 1, position
+						+ length - space - 2, StandardCharsets.UTF_8);
+				if (record.startsWith("path=")) {
+					return record.substring("path=".length());
+				}
+				position += length;
+			}
+			return null;
+		}
+
+		@Override
+		public String toString() {
+			return file.toString();
+		}
+	}
+}
@@ -0,0 +1,237 @@
+package LanguageModel;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import com.google.common.collect.Lists;
+
+import Trie.FrozenTrie;
+import Trie.LongTrie;
+
+/**
+ * Completes a typed prefix into the tokens of the vocabulary that start with
+ * it, ranked by the model given the tokens before it. The vocabulary is kept
+ * sorted, so the words with a given prefix are one range of it; the range is
+ * intersected with the children of every order of the context, as in
+ * {@link AbstractNGramLM#suggestNext}, and at most k candidates per order
+ * are scored.
+ *
+ * The model must be frozen; the completer reflects the vocabulary at the
+ * time it was created.
+ */
+public class IdentifierCompleter {
+
+	private static final Logger LOGGER = Logger
+			.getLogger(IdentifierCompleter.class.getName());
+
+	private final AbstractNGramLM model;
+
+	private final FrozenTrie frozen;
+
+	// the vocabulary in lexicographic order, with the symbol id of each word
+	private final String[] words;
+	private final int[] wordIds;
+
+	// the index in words of every symbol id, -1 if not a word
+	private final int[] wordIndexOfId;
+
+	public IdentifierCompleter(final AbstractNGramLM model) {
+		this.model = checkNotNull(model);
+		final LongTrie<String> trie = model.getTrie();
+		frozen = trie.getFrozenTrie();
+		checkState(frozen != null, "The model must be frozen before it is queried");
+
+		final Set<String> vocabulary = trie.getVocabulary();
+		final List<String> sorted = Lists.newArrayListWithCapacity(vocabulary
+				.size());
+		for (final String word : vocabulary) {
+			if (!AbstractNGramLM.UNK_Symbol.equals(word)) {
+				sorted.add(word);
+			}
+		}
+		Collections.sort(sorted);
+		words = sorted.toArray(new String[sorted.size()]);
+
+		wordIds = new int[words.length];
+		int idLimit = 0;
+		for (int i = 0; i < words.length; i++) {
+			wordIds[i] = trie.getSymbolId(words[i]);
+			idLimit = Math.max(idLimit, wordIds[i] + 1);
+		}
+		wordIndexOfId = new int[idLimit];
+		Arrays.fill(wordIndexOfId, -1);
+		for (int i = 0; i < words.length; i++) {
+			wordIndexOfId[wordIds[i]] = i;
+		}
+		LOGGER.info("Indexed " + words.length + " words for completion");
+	}
+
+	/**
+	 * Return the k most likely words that start with the prefix and follow
+	 * the context, most likely first. Only the last n - 1 tokens of the
+	 * context are used.
+	 *
+	 * @param context
+	 * @param prefix
+	 * @param k
+	 * @return
+	 */
+	public List<Suggestion> complete(final List<String> context,
+			final String prefix, final int k) {
+		checkArgument(k >= 0);
+		checkNotNull(prefix);
+		final int first = firstWithPrefix(prefix);
+		final int end = endOfPrefix(prefix, first);
+		if (first == end || k == 0) {
+			return Collections.emptyList();
+		}
+
+		final LongTrie<String> trie = model.getTrie();
+		final int contextSize = Math.min(context.size(), model.getN() - 1);
+		final int[] ids = new int[contextSize + 1];
+		for (int i = 0; i < contextSize; i++) {
+			ids[i] = trie.getSymbolId(context.get(context.size() - contextSize
+					+ i));
+		}
+
+		// no more than the words with the prefix are found, at any order
+		final int nWords = Math.min(k, end - first);
+		// the candidates of all the orders, without duplicates
+		final int[] candidates = new int[(int) Math.min((long) nWords
+				* (contextSize + 1), end - first)];
+		final SymbolSet seen = new SymbolSet(candidates.length);
+		int nCandidates = 0;
+		final int[] orderCandidates = new int[nWords];
+		final long[] orderCounts = new long[nWords];
+		for (int start = 0; start <= contextSize; start++) {
+			final int node = frozen.getTrieNodeForInput(ids, start,
+					contextSize, false, FrozenTrie.ROOT);
+			if (node == FrozenTrie.NO_NODE) {
+				continue;
+			}
+			final int nFound;
+			if (shouldProbe(end - first, frozen.getChildCount(node), nWords)) {
+				nFound = probeWords(node, first, end, orderCandidates,
+						orderCounts);
+			} else {
+				nFound = scanChildren(node, start == 0, first, end,
+						orderCandidates);
+			}
+			for (int i = 0; i < nFound; i++) {
+				if (seen.add(orderCandidates[i])) {
+					candidates[nCandidates++] = orderCandidates[i];
+				}
+			}
+		}
+
+		final List<Suggestion> suggestions = Lists
+				.newArrayListWithCapacity(nCandidates);
+		for (int i = 0; i < nCandidates; i++) {
+			ids[contextSize] = candidates[i];
+			suggestions.add(new Suggestion(words[wordIndexOfId[candidates[i]]],
+					model.getProbabilityFor(ids, 0, contextSize + 1)));
+		}
+		Collections.sort(suggestions);
+		return suggestions.subList(0, Math.min(k, suggestions.size()));
+	}
+
+	// Looking each word of the range up among the children costs a binary
+	// search per word, scanning the children by rank costs about
+	// k * nChildren / nWords children before k words of the range are seen.
+	private static boolean shouldProbe(final int nWords, final int nChildren,
+			final int k) {
+		return (long) nWords * nWords <= (long) k * nChildren;
+	}
+
+	/**
+	 * Look every word of [first, end) up among the children of the node and
+	 * keep the ones with the highest counts.
+	 *
+	 * @return the number of candidates
+	 */
+	private int probeWords(final int node, final int first, final int end,
+			final int[] candidates, final long[] counts) {
+		final int k = candidates.length;
+		int nFound = 0;
+		for (int i = first; i < end; i++) {
+			final int child = frozen.getChild(node, wordIds[i]);
+			if (child == FrozenTrie.NO_NODE) {
+				continue;
+			}
+			final long count = frozen.getNodeCount(child);
+			if (nFound == k && count <= counts[k - 1]) {
+				continue;
+			}
+			// insert, keeping the counts in decreasing order
+			int j = nFound < k ? nFound++ : k - 1;
+			for (; j > 0 && counts[j - 1] < count; j--) {
+				counts[j] = counts[j - 1];
+				candidates[j] = candidates[j - 1];
+			}
+			counts[j] = count;
+			candidates[j] = wordIds[i];
+		}
+		return nFound;
+	}
+
+	/**
+	 * Walk the children of the node by rank until k of them are in [first,
+	 * end).
+	 *
+	 * @return the number of candidates
+	 */
+	private int scanChildren(final int node, final boolean longestContext,
+			final int first, final int end, final int[] candidates) {
+		final int nChildren = frozen.getChildCount(node);
+		int nFound = 0;
+		for (int rank = 0; rank < nChildren && nFound < candidates.length; rank++) {
+			final int symbol = frozen.getSymbol(model.getRankedChild(node,
+					rank, longestContext));
+			if (symbol >= wordIndexOfId.length) {
+				continue;
+			}
+			final int index = wordIndexOfId[symbol];
+			if (index >= first && index < end) {
+				candidates[nFound++] = symbol;
+			}
+		}
+		return nFound;
+	}
+
+	// the index of the first word not before the prefix
+	private int firstWithPrefix(final String prefix) {
+		int low = 0;
+		int high = words.length;
+		while (low < high) {
+			final int mid = (low + high) >>> 1;
+			if (words[mid].compareTo(prefix) < 0) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	// the index of the first word after first that does not have the prefix
+	private int endOfPrefix(final String prefix, final int first) {
+		int low = first;
+		int high = words.length;
+		while (low < high) {
+			final int mid = (low + high) >>> 1;
+			if (words[mid].startsWith(prefix)) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+}
@@ -2,26 +2,50 @@ package LanguageModel;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
-import java.util.SortedSet;
-import java.util.TreeSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
+import com.google.common.base.Throwables;
 import com.google.common.collect.Lists;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
 import org.apache.commons.lang.exception.ExceptionUtils;
 
 import NGram.NGram;
 import Tokenizer.JavaTokenizer;
 import Tokenizer.Token;
+import Tokenizer.TokenCursor;
+import Trie.SymbolTable;
+import Trie.SymbolTrie;
 
 public class IdentifierNGramLM extends AbstractNGramLM{
 	
 	public static final int CLEAN_NGRAM_THRESHOLD = 1;
 	public static final int CLEAN_VOCABULARY_THRESHOLD = 1;
 	
+	// files tokenized by one fork-join task before it stops splitting
+	private static final int FILES_PER_TRAINING_TASK = 8;
+	
+	// tokens kept in memory between tokenizing and training, about 200MB
+	private static final long MAX_TOKENS_IN_MEMORY = 50000000L;
+	
 	private static final Logger LOGGER = Logger.getLogger(IdentifierNGramLM.class.getName());
 	
 	public IdentifierNGramLM(int size, JavaTokenizer tokenizerModule) {
@@ -30,16 +54,16 @@ public class IdentifierNGramLM extends AbstractNGramLM{
 
 	@Override
 	public void addFromSentence(ArrayList<String> sentence, boolean addNewToks) {
-		for (int i = getN() - 1; i < sentence.size(); ++i) {
-			NGram<String> ngram = new NGram<String>(i, sentence, getN());
-			if (ngram.size() > 1) {
-				addNgram(ngram, addNewToks);
+		// resolve every token once and add the windows straight from the ids
+		final int[] ids = trie.getSentenceSymbolIds(sentence, addNewToks);
+		if (getN() > 1) {
+			for (int i = getN() - 1; i < ids.length; ++i) {
+				trie.add(ids, i - getN() + 1, i + 1);
 			}
 		}
 
-		for (int i = getN() - 1; i > 0; i--) {
-			NGram<String> ngram = new NGram<String>(sentence.size() - 1, sentence, i);
-			addNgram(ngram, addNewToks);
+		for (int i = getN() - 1; i > 0 && ids.length > 0; i--) {
+			trie.add(ids, Math.max(0, ids.length - i), ids.length);
 		}
 		
 	}
@@ -63,8 +87,9 @@ public class IdentifierNGramLM extends AbstractNGramLM{
 	}
 
 	@Override
-	public double getProbabilityFor(final NGram<String> ngram) {
-		return getMLProbabilityFor(ngram, false);
+	protected double computeProbabilityFor(final int[] symbolIds,
+			final int from, final int to) {
+		return getMLProbabilityFor(symbolIds, from, to);
 	}
 
 	@Override
@@ -73,48 +98,475 @@ public class IdentifierNGramLM extends AbstractNGramLM{
 	}
 	
 	public void addRelevantNGrams(ArrayList<Token> lst) {
-
-		SortedSet<Integer> identifierPositions = new TreeSet<Integer>();
-		ArrayList<String> sentence = Lists.newArrayList();
-
-		for (int i = 0; i < lst.size(); i++) {
-			final Token fullToken = lst.get(i);
-			sentence.add(fullToken.token);
-			if (fullToken.tokenType.equals(tokenizer.getIdentifierType())) {
-				identifierPositions.add(i);
+		final int[] ids = trie.getSentenceSymbolIds(getSentence(lst), false);
+		for (final int end : getRelevantWindowEnds(lst)) {
+			trie.add(ids, Math.max(0, end - getN()), end);
+		}
+	}
+	
+	// adds to the given partial trie instead of the model's trie
+	private void addRelevantNGrams(ArrayList<Token> lst, SymbolTrie partialTrie) {
+		final int[] ids = trie.getSentenceSymbolIds(getSentence(lst), false);
+		for (final int end : getRelevantWindowEnds(lst)) {
+			partialTrie.add(ids, Math.max(0, end - getN()), end);
+		}
+	}
+	
+	// adds to the given partial trie as the tokens are scanned, keeping only
+	// the symbol ids of the last n tokens
+	private void addRelevantNGrams(TokenCursor tokens, SymbolTrie partialTrie) {
+		final int n = getN();
+		final SymbolTable<String> symbols = trie.getSymbolTable();
+		// written twice, so that the window ending at any slot is contiguous
+		final int[] window = new int[2 * n];
+		int lastIdentifier = -1;
+		for (int i = 0; tokens.next(); i++) {
+			int id = tokens.getSymbolId(symbols);
+			if (id == SymbolTable.NO_SYMBOL) {
+				id = trie.getUnkSymbolId();
+			}
+			final int slot = i % n;
+			window[slot] = id;
+			window[slot + n] = id;
+			if (tokens.isIdentifier()) {
+				lastIdentifier = i;
 			}
+			// same windows as getRelevantWindowEnds
+			if (lastIdentifier < 0 || lastIdentifier < i - n + 1) {
+				continue;
+			}
+			final int length = Math.min(i + 1, n);
+			if (length > 1) {
+				partialTrie.add(window, slot + n + 1 - length, slot + n + 1);
+			}
+		}
+	}
+	
+	/**
+	 * Undo {@link #addRelevantNGrams(ArrayList)} for the same tokens.
+	 *
+	 * @param lst
+	 */
+	public void removeRelevantNGrams(ArrayList<Token> lst) {
+		final int[] ids = trie.getSentenceSymbolIds(getSentence(lst), false);
+		for (final int end : getRelevantWindowEnds(lst)) {
+			trie.remove(ids, Math.max(0, end - getN()), end);
+		}
+	}
+	
+	private static ArrayList<String> getSentence(ArrayList<Token> lst) {
+		final ArrayList<String> sentence = Lists.newArrayListWithCapacity(lst.size());
+		for (final Token fullToken : lst) {
+			sentence.add(fullToken.token);
 		}
+		return sentence;
+	}
+	
+	/**
+	 * Return the (exclusive) ends of the n-gram windows that contain at least
+	 * one identifier and more than one token. The window ending at end starts
+	 * at max(0, end - n).
+	 *
+	 * @param lst
+	 * @return
+	 */
+	private int[] getRelevantWindowEnds(ArrayList<Token> lst) {
+		final boolean[] identifiers = new boolean[lst.size()];
+		for (int i = 0; i < lst.size(); i++) {
+			identifiers[i] = lst.get(i).tokenType.equals(tokenizer.getIdentifierType());
+		}
+		return getRelevantWindowEnds(identifiers);
+	}
+	
+	private int[] getRelevantWindowEnds(boolean[] identifiers) {
+		final int[] ends = new int[identifiers.length];
+		int nEnds = 0;
+		int lastIdentifier = -1;
 
-		// Construct the rest
-		for (int i = 0; i < sentence.size(); i++) {
+		for (int i = 0; i < identifiers.length; i++) {
+			if (identifiers[i]) {
+				lastIdentifier = i;
+			}
 			// Filter n-grams with no identifiers
-			if (identifierPositions.subSet(i - getN() + 1, i + 1).isEmpty()) {
+			if (lastIdentifier < 0 || lastIdentifier < i - getN() + 1) {
 				continue;
 			}
-			NGram<String> ngram = new NGram<String>(i, sentence, getN());
-			if (ngram.size() > 1) {
-				addNgram(ngram, false);
+			if (Math.min(i + 1, getN()) > 1) {
+				ends[nEnds++] = i + 1;
 			}
 		}
-
+		return Arrays.copyOf(ends, nEnds);
 	}
 	
+	/**
+	 * Train the model on the common fork-join pool, see
+	 * {@link #trainModel(Collection, ForkJoinPool)}.
+	 *
+	 * @param files
+	 * @throws IOException
+	 */
 	public void trainModel(Collection<File> files) throws IOException {
-		trie.buildVocabularySymbols(VocabularyBuilder.buildVocabulary(
-				files, getTokenizer(), CLEAN_VOCABULARY_THRESHOLD));
-		int i=1;
-		for (File fi : files) {
-			LOGGER.finer("Reading file " +i+ " :"+ fi.getAbsolutePath());
-			try {
-				ArrayList<Token> tokens = tokenizer.getTokenListFromFile(fi);
+		trainModel(files, ForkJoinPool.commonPool());
+	}
+	
+	/**
+	 * Train the model as a map-reduce over the files. Each file is read and
+	 * tokenized once, into a {@link TokenizedCorpus} that counts the
+	 * vocabulary on the way; the vocabulary is then fixed, so that all
+	 * workers agree on the symbol ids. Then each worker adds the n-grams of a
+	 * slice of the files to its own private trie without any
+	 * synchronization, and the partial tries are merged pairwise as the
+	 * fork-join tree unwinds.
+	 *
+	 * @param files
+	 * @param pool
+	 * @throws IOException
+	 */
+	public void trainModel(Collection<File> files, ForkJoinPool pool) throws IOException {
+		trainModel(files, pool, MAX_TOKENS_IN_MEMORY);
+	}
+	
+	/**
+	 * Same as {@link #trainModel(Collection, ForkJoinPool)}, keeping at most
+	 * the given number of tokens in memory between the tokenization and the
+	 * n-gram counting. The tokens of the other files are spilled to disk.
+	 *
+	 * @param files
+	 * @param pool
+	 * @param maxTokensInMemory
+	 * @throws IOException
+	 */
+	public void trainModel(Collection<File> files, ForkJoinPool pool, long maxTokensInMemory) throws IOException {
+		trainModel(files, pool, maxTokensInMemory, null);
+	}
+	
+	/**
+	 * Same as {@link #trainModel(Collection, ForkJoinPool)}, reusing the
+	 * tokens of the files that have not changed since they were written to
+	 * the corpus cache file, and rewriting it if any file was scanned.
+	 *
+	 * @param files
+	 * @param pool
+	 * @param corpusCache
+	 * @throws IOException
+	 */
+	public void trainModel(Collection<File> files, ForkJoinPool pool, File corpusCache) throws IOException {
+		trainModel(files, pool, MAX_TOKENS_IN_MEMORY, corpusCache);
+	}
+	
+	/**
+	 * Same as {@link #trainModel(Collection, ForkJoinPool, long)}, with a
+	 * corpus cache file as in
+	 * {@link #trainModel(Collection, ForkJoinPool, File)}.
+	 *
+	 * @param files
+	 * @param pool
+	 * @param maxTokensInMemory
+	 * @param corpusCache
+	 *            null for no cache
+	 * @throws IOException
+	 */
+	public void trainModel(Collection<File> files, ForkJoinPool pool, long maxTokensInMemory, File corpusCache) throws IOException {
+		final List<File> fileList = Lists.newArrayList(files);
+		final long start = System.nanoTime();
+		try (final TokenizedCorpus corpus = TokenizedCorpus.tokenize(fileList,
+				getTokenizer(), pool, maxTokensInMemory, corpusCache)) {
+			trainModel(corpus, pool);
+		}
+		
+		LOGGER.info("Trained on " + fileList.size() + " files in "
+				+ (System.nanoTime() - start) / 1E9 + "s");
+	}
+	
+	/**
+	 * Train the model on the java files of a source, e.g. source jars or
+	 * tarballs, streamed out of it without extracting it; see
+	 * {@link #trainModel(Collection, ForkJoinPool)}.
+	 *
+	 * @param source
+	 * @param pool
+	 * @throws IOException
+	 */
+	public void trainModel(CorpusSource source, ForkJoinPool pool) throws IOException {
+		trainModel(source, pool, MAX_TOKENS_IN_MEMORY);
+	}
+	
+	/**
+	 * Same as {@link #trainModel(CorpusSource, ForkJoinPool)}, keeping at
+	 * most the given number of tokens in memory.
+	 *
+	 * @param source
+	 * @param pool
+	 * @param maxTokensInMemory
+	 * @throws IOException
+	 */
+	public void trainModel(CorpusSource source, ForkJoinPool pool, long maxTokensInMemory) throws IOException {
+		final long start = System.nanoTime();
+		final int nEntries;
+		try (final TokenizedCorpus corpus = TokenizedCorpus.tokenize(source,
+				getTokenizer(), pool, maxTokensInMemory)) {
+			trainModel(corpus, pool);
+			nEntries = corpus.size();
+		}
+		
+		LOGGER.info("Trained on " + nEntries + " entries of " + source
+				+ " in " + (System.nanoTime() - start) / 1E9 + "s");
+	}
+	
+	// fix the vocabulary of the corpus, then count the n-grams of its files
+	// on the pool
+	private void trainModel(TokenizedCorpus corpus, ForkJoinPool pool) throws IOException {
+		trie.buildVocabularySymbols(corpus.getVocabulary(CLEAN_VOCABULARY_THRESHOLD));
+		
+		// the symbol of every word of the corpus, UNK if it is rare
+		final int[] symbols = new int[corpus.getWordCount()];
+		for (int i = 0; i < symbols.length; i++) {
+			symbols[i] = trie.getSymbolId(corpus.getWord(i));
+			if (symbols[i] == SymbolTable.NO_SYMBOL) {
+				symbols[i] = trie.getUnkSymbolId();
+			}
+		}
+		
+		final SymbolTrie trained;
+		try {
+			trained = pool.invoke(new CorpusTrainingTask(corpus, symbols,
+					0, corpus.size()));
+		} catch (final UncheckedIOException e) {
+			throw e.getCause();
+		}
+		trie.merge(trained);
+	}
+	
+	/**
+	 * Train the model over an already built vocabulary, reading the files
+	 * again; see {@link #trainModel(Collection, ForkJoinPool)}.
+	 *
+	 * @param files
+	 * @param vocabulary
+	 * @param pool
+	 * @throws IOException
+	 */
+	public void trainModel(Collection<File> files, Set<String> vocabulary, ForkJoinPool pool) throws IOException {
+		trie.buildVocabularySymbols(vocabulary);
+		
+		final long start = System.nanoTime();
+		final List<File> fileList = Lists.newArrayList(files);
+		final SymbolTrie trained = pool.invoke(new FileTrainingTask(
+				fileList, 0, fileList.size()));
+		trie.merge(trained);
+		
+		LOGGER.info("Trained on " + fileList.size() + " files in "
+				+ (System.nanoTime() - start) / 1E9 + "s");
+	}
+	
+	/**
+	 * Train the model over an already built vocabulary, streaming the
+	 * entries of the source again; see
+	 * {@link #trainModel(Collection, Set, ForkJoinPool)}. Each worker adds
+	 * the n-grams of the entries it is handed to its own partial trie, and
+	 * the partial tries are merged once all the entries are read.
+	 *
+	 * @param source
+	 * @param vocabulary
+	 * @param pool
+	 * @throws IOException
+	 */
+	public void trainModel(CorpusSource source, Set<String> vocabulary, ForkJoinPool pool) throws IOException {
+		trie.buildVocabularySymbols(vocabulary);
+		
+		final long start = System.nanoTime();
+		// the partial trie of each worker, dropped with the method
+		final ConcurrentMap<Thread, SymbolTrie> partials = new ConcurrentHashMap<Thread, SymbolTrie>();
+		final int nEntries = source.forEachEntry(new CorpusSource.EntryHandler() {
+			@Override
+			public void handle(int index, CorpusSource.Entry entry) {
+				LOGGER.finer("Reading entry " + (index + 1) + " :" + entry.name);
+				SymbolTrie partial = partials.get(Thread.currentThread());
+				if (partial == null) {
+					partial = trie.newPartialTrie();
+					partials.put(Thread.currentThread(), partial);
+				}
+				try {
+					addRelevantNGrams(entry.getTokenCursor(tokenizer), partial);
+				} catch (final IOException e) {
+					LOGGER.warning(ExceptionUtils.getFullStackTrace(e));
+				}
+			}
+		}, pool);
+		for (final SymbolTrie workerTrie : partials.values()) {
+			trie.merge(workerTrie);
+		}
+		
+		LOGGER.info("Trained on " + nEntries + " entries of " + source
+				+ " in " + (System.nanoTime() - start) / 1E9 + "s");
+	}
+	
+	/**
+	 * Builds the partial trie of a range of files, splitting the range in
+	 * halves until it is small enough.
+	 */
+	private abstract class PartialTrainingTask extends RecursiveTask<SymbolTrie> {
+
+		private static final long serialVersionUID = 1L;
+
+		protected final int from;
+		protected final int to;
+
+		PartialTrainingTask(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		abstract PartialTrainingTask newTask(int from, int to);
+
+		abstract void addFile(int index, SymbolTrie partial);
+
+		@Override
+		protected SymbolTrie compute() {
+			if (to - from <= FILES_PER_TRAINING_TASK) {
+				final SymbolTrie partial = trie.newPartialTrie();
+				for (int i = from; i < to; i++) {
+					addFile(i, partial);
+				}
+				return partial;
+			}
+
+			final int middle = (from + to) >>> 1;
+			final PartialTrainingTask left = newTask(from, middle);
+			left.fork();
+			final SymbolTrie rightTrie = newTask(middle, to).compute();
+			final SymbolTrie leftTrie = left.join();
+
+			// merge the smaller trie into the larger one
+			if (leftTrie.getRoot().count >= rightTrie.getRoot().count) {
+				leftTrie.merge(rightTrie);
+				return leftTrie;
+			}
+			rightTrie.merge(leftTrie);
+			return rightTrie;
+		}
+	}
+	
+	// tokenizes the files itself
+	private class FileTrainingTask extends PartialTrainingTask {
+
+		private static final long serialVersionUID = 1L;
+
+		private final List<File> files;
 
-				addRelevantNGrams(tokens);
+		FileTrainingTask(List<File> files, int from, int to) {
+			super(from, to);
+			this.files = files;
+		}
+
+		@Override
+		PartialTrainingTask newTask(int from, int to) {
+			return new FileTrainingTask(files, from, to);
+		}
+
+		@Override
+		void addFile(int index, SymbolTrie partial) {
+			final File fi = files.get(index);
+			LOGGER.finer("Reading file " + (index + 1) + " :" + fi.getAbsolutePath());
+			try {
+				addRelevantNGrams(tokenizer.getTokenCursor(fi), partial);
 			} catch (final IOException e) {
 				LOGGER.warning(ExceptionUtils.getFullStackTrace(e));
 			}
-			i+=1;
+		}
+	}
+	
+	// reads the files already tokenized in a corpus
+	private class CorpusTrainingTask extends PartialTrainingTask {
+
+		private static final long serialVersionUID = 1L;
+
+		private final TokenizedCorpus corpus;
+		private final int[] symbols;
+
+		CorpusTrainingTask(TokenizedCorpus corpus, int[] symbols, int from, int to) {
+			super(from, to);
+			this.corpus = corpus;
+			this.symbols = symbols;
+		}
+
+		@Override
+		PartialTrainingTask newTask(int from, int to) {
+			return new CorpusTrainingTask(corpus, symbols, from, to);
+		}
+
+		@Override
+		void addFile(int index, SymbolTrie partial) {
+			final int[] codes;
+			try {
+				codes = corpus.getCodes(index);
+			} catch (final IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			final int[] ids = new int[codes.length];
+			final boolean[] identifiers = new boolean[codes.length];
+			for (int i = 0; i < codes.length; i++) {
+				ids[i] = symbols[TokenizedCorpus.getWordId(codes[i])];
+				identifiers[i] = TokenizedCorpus.isIdentifier(codes[i]);
+			}
+			for (final int end : getRelevantWindowEnds(identifiers)) {
+				partial.add(ids, Math.max(0, end - getN()), end);
+			}
+		}
+	}
+	
+	/**
+	 * Train the model on several threads that share one trie. Each file is
+	 * tokenized and its n-grams added by one of the threads.
+	 *
+	 * @param files
+	 * @param nThreads
+	 * @throws IOException
+	 */
+	public void trainModel(Collection<File> files, int nThreads) throws IOException {
+		checkArgument(nThreads > 0);
+		trie.buildVocabularySymbols(VocabularyBuilder.buildVocabulary(
+				files, getTokenizer(), CLEAN_VOCABULARY_THRESHOLD));
+		
+		final AtomicLong nTokens = new AtomicLong();
+		final ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+		final long start = System.nanoTime();
+		trie.setConcurrent(true);
+		try {
+			final List<Future<?>> tasks = Lists.newArrayList();
+			for (final File fi : files) {
+				tasks.add(pool.submit(new Runnable() {
+					@Override
+					public void run() {
+						LOGGER.finer("Reading file " + fi.getAbsolutePath());
+						try {
+							ArrayList<Token> tokens = tokenizer.getTokenListFromFile(fi);
+							addRelevantNGrams(tokens);
+							nTokens.addAndGet(tokens.size());
+						} catch (final IOException e) {
+							LOGGER.warning(ExceptionUtils.getFullStackTrace(e));
+						}
+					}
+				}));
+			}
+			for (Future<?> task : tasks) {
+				task.get();
+			}
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Training interrupted");
+		} catch (final ExecutionException e) {
+			Throwables.propagateIfPossible(e.getCause(), IOException.class);
+			throw new RuntimeException(e.getCause());
+		} finally {
+			pool.shutdownNow();
+			trie.setConcurrent(false);
 		}
 		
+		final double seconds = (System.nanoTime() - start) / 1E9;
+		LOGGER.info("Trained on " + nTokens.get() + " tokens with " + nThreads
+				+ " threads in " + seconds + "s ("
+				+ (long) (nTokens.get() / seconds) + " tokens/s)");
 	}
 
 }
@@ -0,0 +1,314 @@
+package LanguageModel;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multiset;
+
+import NGram.NGram;
+import Tokenizer.JavaTokenizer;
+import Tokenizer.TokenCursor;
+
+/**
+ * A source file being edited, kept tokenized across edits. An edit scans
+ * again only from the token before it up to the first token after it that
+ * starts where an old token started, since the scan from there on is the
+ * same, and reports the n-grams the edit removed and added: the windows of
+ * {@link IdentifierNGramLM#addRelevantNGrams} that overlap the replaced
+ * tokens. If the document is part of the model's training set, the model is
+ * updated with them.
+ *
+ * Scanning and n-grams cost in proportion to the edit; the text and the
+ * token arrays are still moved as arrays, and the scanner is given a text
+ * array exactly as long as the text.
+ */
+public class IncrementalDocument {
+
+	/**
+	 * The n-grams an edit took away and brought in, without the ones that
+	 * are in both.
+	 */
+	public static class NGramDelta {
+		public final Multiset<NGram<String>> removed;
+
+		public final Multiset<NGram<String>> added;
+
+		public NGramDelta(Multiset<NGram<String>> removed,
+				Multiset<NGram<String>> added) {
+			this.removed = removed;
+			this.added = added;
+		}
+
+		public boolean isEmpty() {
+			return removed.isEmpty() && added.isEmpty();
+		}
+
+		@Override
+		public String toString() {
+			return "-" + removed + " +" + added;
+		}
+	}
+
+	/**
+	 * Tokens with their offsets in the text, in parallel arrays.
+	 */
+	private static final class TokenArrays {
+		String[] tokens;
+		int[] starts;
+		int[] ends;
+		boolean[] identifiers;
+		int size = 0;
+
+		TokenArrays(final int capacity) {
+			tokens = new String[capacity];
+			starts = new int[capacity];
+			ends = new int[capacity];
+			identifiers = new boolean[capacity];
+		}
+
+		void append(final TokenCursor cursor) {
+			if (size == tokens.length) {
+				grow(size + 1);
+			}
+			tokens[size] = cursor.getToken();
+			starts[size] = cursor.getStart();
+			ends[size] = cursor.getEnd();
+			identifiers[size] = cursor.isIdentifier();
+			size++;
+		}
+
+		void grow(final int minCapacity) {
+			final int capacity = Math.max(minCapacity, 2 * tokens.length);
+			tokens = Arrays.copyOf(tokens, capacity);
+			starts = Arrays.copyOf(starts, capacity);
+			ends = Arrays.copyOf(ends, capacity);
+			identifiers = Arrays.copyOf(identifiers, capacity);
+		}
+
+		/**
+		 * Replace the tokens [from, to) with the other ones, and move the
+		 * tokens after them by the shift of the text.
+		 */
+		void splice(final int from, final int to, final TokenArrays other,
+				final int shift) {
+			final int newSize = size - (to - from) + other.size;
+			if (newSize > tokens.length) {
+				grow(newSize);
+			}
+			final int tail = size - to;
+			final int newTo = from + other.size;
+			System.arraycopy(tokens, to, tokens, newTo, tail);
+			System.arraycopy(starts, to, starts, newTo, tail);
+			System.arraycopy(ends, to, ends, newTo, tail);
+			System.arraycopy(identifiers, to, identifiers, newTo, tail);
+			System.arraycopy(other.tokens, 0, tokens, from, other.size);
+			System.arraycopy(other.starts, 0, starts, from, other.size);
+			System.arraycopy(other.ends, 0, ends, from, other.size);
+			System.arraycopy(other.identifiers, 0, identifiers, from,
+					other.size);
+			if (newSize < size) {
+				Arrays.fill(tokens, newSize, size, null);
+			}
+			size = newSize;
+			for (int i = newTo; i < size; i++) {
+				starts[i] += shift;
+				ends[i] += shift;
+			}
+		}
+	}
+
+	private final AbstractNGramLM model;
+
+	private final JavaTokenizer tokenizer;
+
+	private final boolean inTrainingSet;
+
+	private char[] text;
+
+	// starting with SENTENCE_START at 0 and ending with SENTENCE_END at the
+	// end of the text
+	private final TokenArrays tokens;
+
+	/**
+	 * @param model
+	 * @param text
+	 * @param inTrainingSet
+	 *            whether the model was trained on the text, so that the
+	 *            n-grams of every edit are applied to it
+	 */
+	public IncrementalDocument(final AbstractNGramLM model, final String text,
+			final boolean inTrainingSet) {
+		this.model = checkNotNull(model);
+		tokenizer = model.getTokenizer();
+		this.inTrainingSet = inTrainingSet;
+		checkState(!inTrainingSet || !model.getTrie().isFrozen(),
+				"A frozen model cannot follow edits");
+		this.text = text.toCharArray();
+
+		// about one token every four chars
+		tokens = new TokenArrays(16 + text.length() / 4);
+		final TokenCursor cursor = tokenizer.getTokenCursor(this.text);
+		while (cursor.next()) {
+			tokens.append(cursor);
+		}
+	}
+
+	/**
+	 * Replace removedLength chars at offset with the inserted text.
+	 *
+	 * @param offset
+	 * @param removedLength
+	 * @param inserted
+	 * @return the n-grams that changed
+	 */
+	public NGramDelta edit(final int offset, final int removedLength,
+			final String inserted) {
+		checkArgument(offset >= 0 && removedLength >= 0
+				&& offset + removedLength <= text.length,
+				"Edit [%s, %s) outside of the text", offset, offset
+						+ removedLength);
+		checkNotNull(inserted);
+		final int removedEnd = offset + removedLength;
+		final int shift = inserted.length() - removedLength;
+
+		// Scan again from the token before the first one that reaches the
+		// edit, so that a token that ends just before it can grow into it.
+		final int[] starts = tokens.starts;
+		final int nTokens = tokens.size;
+		int first = 1;
+		int high = nTokens - 1;
+		while (first < high) {
+			final int mid = (first + high) >>> 1;
+			if (tokens.ends[mid] < offset) {
+				first = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		first--;
+		final int restart;
+		if (first == 0) {
+			// from the start of the text
+			first = 1;
+			restart = 0;
+		} else {
+			restart = starts[first];
+		}
+
+		final char[] newText = new char[text.length + shift];
+		System.arraycopy(text, 0, newText, 0, offset);
+		inserted.getChars(0, inserted.length(), newText, offset);
+		System.arraycopy(text, removedEnd, newText, offset + inserted.length(),
+				text.length - removedEnd);
+
+		// the old tokens after the edit, which are still there once the scan
+		// reaches one of them
+		int resync = first;
+		while (resync < nTokens - 1 && starts[resync] < removedEnd) {
+			resync++;
+		}
+		final TokenArrays scanned = new TokenArrays(16);
+		final TokenCursor cursor = tokenizer.getTokenCursor(newText, restart);
+		while (cursor.next()) {
+			if (cursor.getType() == TokenCursor.SENTENCE_START_TYPE) {
+				continue;
+			}
+			if (cursor.getType() == TokenCursor.SENTENCE_END_TYPE) {
+				resync = nTokens - 1;
+				break;
+			}
+			while (resync < nTokens - 1
+					&& starts[resync] + shift < cursor.getStart()) {
+				resync++;
+			}
+			if (resync < nTokens - 1
+					&& starts[resync] + shift == cursor.getStart()) {
+				break;
+			}
+			scanned.append(cursor);
+		}
+		cursor.close();
+
+		// the old tokens [first, resync) become the scanned ones
+		final Multiset<NGram<String>> removed = getWindows(first, resync);
+		tokens.splice(first, resync, scanned, shift);
+		text = newText;
+		final Multiset<NGram<String>> added = getWindows(first, first
+				+ scanned.size);
+		for (final NGram<String> ngram : Lists.newArrayList(added)) {
+			if (removed.remove(ngram)) {
+				added.remove(ngram);
+			}
+		}
+
+		if (inTrainingSet) {
+			for (final NGram<String> ngram : removed) {
+				model.removeNgram(ngram);
+			}
+			for (final NGram<String> ngram : added) {
+				model.addNgram(ngram, false);
+			}
+		}
+		return new NGramDelta(removed, added);
+	}
+
+	/**
+	 * The relevant windows that overlap the tokens [from, to): the windows
+	 * ending in (from, to + n - 1] that contain an identifier and more than
+	 * one token.
+	 */
+	private Multiset<NGram<String>> getWindows(final int from, final int to) {
+		final int n = model.getN();
+		final Multiset<NGram<String>> windows = HashMultiset.create();
+		final int lastEnd = Math.min(tokens.size, to + n - 1);
+		for (int end = from + 1; end <= lastEnd; end++) {
+			final int start = Math.max(0, end - n);
+			if (end - start < 2) {
+				continue;
+			}
+			boolean relevant = false;
+			for (int i = start; i < end && !relevant; i++) {
+				relevant = tokens.identifiers[i];
+			}
+			if (relevant) {
+				final ArrayList<String> window = Lists.newArrayList(Arrays
+						.asList(tokens.tokens).subList(start, end));
+				windows.add(new NGram<String>(window));
+			}
+		}
+		return windows;
+	}
+
+	public String getText() {
+		return new String(text);
+	}
+
+	public int getTokenCount() {
+		return tokens.size;
+	}
+
+	public String getToken(final int index) {
+		checkArgument(index >= 0 && index < tokens.size);
+		return tokens.tokens[index];
+	}
+
+	public boolean isIdentifier(final int index) {
+		checkArgument(index >= 0 && index < tokens.size);
+		return tokens.identifiers[index];
+	}
+
+	/**
+	 * The tokens, as {@link JavaTokenizer#tokenList} gives them for the
+	 * text.
+	 */
+	public ArrayList<String> getTokens() {
+		return Lists.newArrayList(Arrays.asList(tokens.tokens).subList(0,
+				tokens.size));
+	}
+}
@@ -0,0 +1,281 @@
+package LanguageModel;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import Tokenizer.JavaTokenizer;
+import Trie.FrozenTrie;
+import Trie.SymbolTable;
+
+/**
+ * An interpolated, modified Kneser-Ney model. It is trained like an
+ * {@link IdentifierNGramLM}; when the model is frozen, the discounts, the
+ * continuation counts and the backoff weight of every context are computed
+ * once and kept in arrays indexed by the frozen trie's nodes. Scoring an
+ * n-gram then takes one trie walk per order and a few array reads.
+ *
+ * The highest order of a query uses the raw counts of the trie, the lower
+ * orders use continuation counts, i.e. the number of distinct symbols that
+ * precede an n-gram.
+ */
+public class KneserNeyNGramLM extends IdentifierNGramLM {
+
+	private static final Logger LOGGER = Logger
+			.getLogger(KneserNeyNGramLM.class.getName());
+
+	// used when there are too few counts to estimate a discount
+	private static final double[] DEFAULT_DISCOUNTS = { 0, 0.5, 1.0, 1.5 };
+
+	private FrozenTrie frozen;
+
+	// number of distinct symbols preceding the n-gram of each node
+	private int[] continuationCounts;
+
+	// the children of every node by decreasing continuation count, in the
+	// ranges of the frozen trie's children
+	private int[] continuationRankedChildren;
+
+	// sum of the continuation counts of the children of each node
+	private long[] continuationSums;
+
+	// backoff weight of each node as a context, for raw and for continuation
+	// counts
+	private double[] rawBackoffs;
+	private double[] continuationBackoffs;
+
+	// discounts of counts 1, 2 and 3+, by order (index 0 is unused)
+	private double[][] rawDiscounts;
+	private double[][] continuationDiscounts;
+
+	private double uniformProbability;
+
+	public KneserNeyNGramLM(int size, JavaTokenizer tokenizerModule) {
+		super(size, tokenizerModule);
+	}
+
+	private static double discount(final double[] discounts, final long count) {
+		return discounts[(int) Math.min(count, 3)];
+	}
+
+	/**
+	 * Estimate the discounts of one order from its count-of-counts, as in
+	 * Chen and Goodman's modified Kneser-Ney.
+	 *
+	 * @param countOfCounts
+	 *            the number of n-grams seen once, twice, three and four times
+	 * @return
+	 */
+	private static double[] estimateDiscounts(final long[] countOfCounts) {
+		final double n1 = countOfCounts[1], n2 = countOfCounts[2];
+		final double n3 = countOfCounts[3], n4 = countOfCounts[4];
+		if (n1 == 0 || n2 == 0 || n3 == 0 || n4 == 0) {
+			return DEFAULT_DISCOUNTS.clone();
+		}
+		final double y = n1 / (n1 + 2 * n2);
+		final double[] discounts = new double[4];
+		discounts[1] = 1 - 2 * y * n2 / n1;
+		discounts[2] = 2 - 3 * y * n3 / n2;
+		discounts[3] = 3 - 4 * y * n4 / n3;
+		for (int i = 1; i < 4; i++) {
+			// a discount must leave some mass for the lower orders, without
+			// removing the whole count
+			if (!(discounts[i] > 0 && discounts[i] <= i)) {
+				discounts[i] = DEFAULT_DISCOUNTS[i];
+			}
+		}
+		return discounts;
+	}
+
+	/**
+	 * Compute the discounts, continuation counts and backoff weights from the
+	 * frozen trie.
+	 */
+	private void estimate() {
+		frozen = checkNotNull(trie.getFrozenTrie());
+		final int nNodes = frozen.size();
+		final int maxOrder = getN();
+
+		// Nodes are in level order, so a node's parent and its suffix (the
+		// n-gram without its first symbol) always come before it.
+		final int[] depths = new int[nNodes];
+		final int[] suffixes = new int[nNodes];
+		continuationCounts = new int[nNodes];
+		suffixes[FrozenTrie.ROOT] = FrozenTrie.NO_NODE;
+		int maxDepth = 0;
+		for (int node = 0; node < nNodes; node++) {
+			final int nChildren = frozen.getChildCount(node);
+			for (int i = 0; i < nChildren; i++) {
+				final int child = frozen.childAt(node, i);
+				depths[child] = depths[node] + 1;
+				maxDepth = Math.max(maxDepth, depths[child]);
+				if (node == FrozenTrie.ROOT) {
+					suffixes[child] = FrozenTrie.ROOT;
+				} else if (suffixes[node] == FrozenTrie.NO_NODE) {
+					suffixes[child] = FrozenTrie.NO_NODE;
+				} else {
+					suffixes[child] = frozen.getChild(suffixes[node],
+							frozen.getSymbol(child));
+				}
+				if (suffixes[child] != FrozenTrie.NO_NODE
+						&& suffixes[child] != FrozenTrie.ROOT) {
+					continuationCounts[suffixes[child]]++;
+				}
+			}
+		}
+
+		// discounts by order, from the count-of-counts of each depth
+		final int nOrders = Math.max(maxOrder, maxDepth) + 2;
+		final long[][] rawCountOfCounts = new long[nOrders][5];
+		final long[][] continuationCountOfCounts = new long[nOrders][5];
+		for (int node = 1; node < nNodes; node++) {
+			final long count = frozen.getNodeCount(node);
+			if (count <= 4) {
+				rawCountOfCounts[depths[node]][(int) count]++;
+			}
+			if (continuationCounts[node] <= 4) {
+				continuationCountOfCounts[depths[node]][continuationCounts[node]]++;
+			}
+		}
+		rawDiscounts = new double[nOrders][];
+		continuationDiscounts = new double[nOrders][];
+		for (int order = 1; order < nOrders; order++) {
+			rawDiscounts[order] = estimateDiscounts(rawCountOfCounts[order]);
+			continuationDiscounts[order] = estimateDiscounts(continuationCountOfCounts[order]);
+		}
+
+		// the backoff weight of a context is the mass taken by the discounts
+		continuationSums = new long[nNodes];
+		rawBackoffs = new double[nNodes];
+		continuationBackoffs = new double[nNodes];
+		for (int node = 0; node < nNodes; node++) {
+			final int nChildren = frozen.getChildCount(node);
+			if (nChildren == 0) {
+				continue;
+			}
+			final int order = depths[node] + 1;
+			double rawMass = 0;
+			double continuationMass = 0;
+			long continuationSum = 0;
+			for (int i = 0; i < nChildren; i++) {
+				final int child = frozen.childAt(node, i);
+				rawMass += discount(rawDiscounts[order],
+						frozen.getNodeCount(child));
+				continuationMass += discount(continuationDiscounts[order],
+						continuationCounts[child]);
+				continuationSum += continuationCounts[child];
+			}
+			final long rawSum = frozen.getNodeCount(node)
+					- frozen.getNodeIsLast(node);
+			rawBackoffs[node] = rawSum > 0 ? rawMass / rawSum : 1;
+			continuationSums[node] = continuationSum;
+			continuationBackoffs[node] = continuationSum > 0 ? continuationMass
+					/ continuationSum : 1;
+		}
+
+		continuationRankedChildren = rankByContinuationCount();
+
+		uniformProbability = 1. / Math.max(1, trie.getVocabulary().size());
+		LOGGER.info("Estimated Kneser-Ney weights for " + nNodes + " nodes");
+	}
+
+	@Override
+	public void freeze() {
+		super.freeze();
+		if (frozen != trie.getFrozenTrie()) {
+			estimate();
+		}
+	}
+
+	/**
+	 * Return the probability of the last symbol of the n-gram given the
+	 * others. The model must be frozen.
+	 */
+	@Override
+	protected double computeProbabilityFor(final int[] symbolIds,
+			final int from, final int to) {
+		checkState(frozen != null && frozen == trie.getFrozenTrie(),
+				"The model must be frozen before it is queried");
+		checkArgument(from < to);
+
+		final int length = to - from;
+		final int last = to - 1;
+
+		// interpolate from the lowest order up
+		double probability = uniformProbability;
+		for (int order = 1; order <= length; order++) {
+			int context = FrozenTrie.ROOT;
+			for (int i = to - order; i < last
+					&& context != FrozenTrie.NO_NODE; i++) {
+				context = frozen.getChild(context, symbolAt(symbolIds, i));
+			}
+			if (context == FrozenTrie.NO_NODE) {
+				continue;
+			}
+			final int node = frozen.getChild(context,
+					symbolAt(symbolIds, last));
+
+			final long count;
+			final long sum;
+			final double discount;
+			final double backoff;
+			if (order == length) {
+				count = node == FrozenTrie.NO_NODE ? 0 : frozen.getNodeCount(node);
+				sum = frozen.getNodeCount(context) - frozen.getNodeIsLast(context);
+				discount = discount(rawDiscounts[order], count);
+				backoff = rawBackoffs[context];
+			} else {
+				count = node == FrozenTrie.NO_NODE ? 0 : continuationCounts[node];
+				sum = continuationSums[context];
+				discount = discount(continuationDiscounts[order], count);
+				backoff = continuationBackoffs[context];
+			}
+			if (sum == 0) {
+				continue;
+			}
+			probability = Math.max(count - discount, 0) / sum + backoff
+					* probability;
+		}
+		return probability;
+	}
+
+	private int[] rankByContinuationCount() {
+		return frozen.rankChildren(new FrozenTrie.NodeKey() {
+			@Override
+			public long keyOf(final int node) {
+				return continuationCounts[node];
+			}
+		});
+	}
+
+	/**
+	 * Rank the children of shorter contexts by continuation count, as they
+	 * are scored.
+	 */
+	@Override
+	protected int getRankedChild(final int node, final int rank,
+			final boolean longestContext) {
+		if (longestContext) {
+			return super.getRankedChild(node, rank, longestContext);
+		}
+		checkArgument(rank < frozen.getChildCount(node));
+		return continuationRankedChildren[frozen.childAt(node, 0) + rank];
+	}
+
+	// words that are not in the vocabulary are scored as UNK
+	private int symbolAt(final int[] symbolIds, final int index) {
+		final int id = symbolIds[index];
+		return id == SymbolTable.NO_SYMBOL ? trie.getUnkSymbolId() : id;
+	}
+
+	@Override
+	public void load(final File file, final boolean verifyChecksum)
+			throws IOException {
+		super.load(file, verifyChecksum);
+		estimate();
+	}
+}
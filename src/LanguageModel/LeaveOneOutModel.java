@@ -0,0 +1,184 @@
+package LanguageModel;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.logging.Logger;
+
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multiset;
+import com.google.common.collect.Multiset.Entry;
+import com.google.common.collect.Sets;
+
+import Tokenizer.JavaTokenizer;
+import Tokenizer.Token;
+
+/**
+ * A model trained once on a whole corpus, from which a single file can be
+ * held out and put back. While a file is held out the model is the same as an
+ * {@link IdentifierNGramLM} trained on all the other files: the file's n-grams
+ * are subtracted, and the words that then fall under the vocabulary threshold
+ * are turned into UNK in the few other files that still use them.
+ */
+public class LeaveOneOutModel {
+
+	private static final Logger LOGGER = Logger
+			.getLogger(LeaveOneOutModel.class.getName());
+
+	private final IdentifierNGramLM model;
+
+	private final JavaTokenizer tokenizer;
+
+	private final int threshold;
+
+	// vocabulary counts over the whole corpus
+	private final Multiset<String> wordCounts = HashMultiset.create();
+
+	// the files of every word that is in at most threshold + 1 files
+	private final Map<String, List<File>> filesOfRareWords = Maps.newHashMap();
+
+	// the state of the current hold out, null if none
+	private File heldOut;
+	private ArrayList<Token> heldOutTokens;
+	private List<ArrayList<Token>> affectedTokens;
+	private Map<String, Integer> hiddenSymbols;
+
+	/**
+	 * Train the model on all the files.
+	 *
+	 * @param size
+	 * @param tokenizer
+	 * @param files
+	 * @throws IOException
+	 */
+	public LeaveOneOutModel(final int size, final JavaTokenizer tokenizer,
+			final Collection<File> files) throws IOException {
+		this.tokenizer = tokenizer;
+		threshold = IdentifierNGramLM.CLEAN_VOCABULARY_THRESHOLD;
+		model = new IdentifierNGramLM(size, tokenizer);
+
+		// Only a word in at most threshold + 1 files can drop out of the
+		// vocabulary when one file is held out, so only those are indexed.
+		final int maxIndexedFiles = threshold + 1;
+		for (final File f : files) {
+			final Multiset<String> fileCounts = HashMultiset.create(tokenizer
+					.tokenListFromFile(f));
+			for (final Entry<String> ent : fileCounts.entrySet()) {
+				wordCounts.add(ent.getElement(), ent.getCount());
+				List<File> wordFiles = filesOfRareWords.get(ent.getElement());
+				if (wordFiles == null) {
+					wordFiles = Lists.newArrayListWithCapacity(1);
+					filesOfRareWords.put(ent.getElement(), wordFiles);
+				}
+				if (wordFiles.size() <= maxIndexedFiles) {
+					wordFiles.add(f);
+				}
+			}
+		}
+		final Set<String> vocabulary = Sets.newHashSet();
+		for (final Entry<String> ent : wordCounts.entrySet()) {
+			if (ent.getCount() > threshold) {
+				vocabulary.add(ent.getElement());
+			}
+			if (filesOfRareWords.get(ent.getElement()).size() > maxIndexedFiles) {
+				filesOfRareWords.remove(ent.getElement());
+			}
+		}
+
+		model.trainModel(files, vocabulary, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * The model. It reflects the current hold out, if any.
+	 */
+	public IdentifierNGramLM getModel() {
+		return model;
+	}
+
+	/**
+	 * Subtract a file from the model. Only one file can be held out at a time.
+	 *
+	 * @param file
+	 *            a file the model was trained on
+	 * @throws IOException
+	 */
+	public void holdOut(final File file) throws IOException {
+		checkState(heldOut == null, "%s is already held out", heldOut);
+
+		final ArrayList<Token> tokens = tokenizer.getTokenListFromFile(file);
+		final Multiset<String> fileCounts = HashMultiset.create(tokenizer
+				.tokenListFromFile(file));
+
+		// the words that the other files alone do not keep in the vocabulary
+		final List<String> dropped = Lists.newArrayList();
+		final Set<File> affected = Sets.newHashSet();
+		for (final Entry<String> ent : fileCounts.entrySet()) {
+			final int count = wordCounts.count(ent.getElement());
+			if (count > threshold && count - ent.getCount() <= threshold
+					&& !AbstractNGramLM.UNK_Symbol.equals(ent.getElement())) {
+				dropped.add(ent.getElement());
+				final List<File> wordFiles = filesOfRareWords.get(ent
+						.getElement());
+				checkArgument(wordFiles != null && wordFiles.contains(file),
+						"%s is not in the training set", file);
+				affected.addAll(wordFiles);
+			}
+		}
+		affected.remove(file);
+
+		model.removeRelevantNGrams(tokens);
+		final List<ArrayList<Token>> affectedFileTokens = Lists.newArrayList();
+		for (final File f : affected) {
+			final ArrayList<Token> fileTokens = tokenizer.getTokenListFromFile(f);
+			model.removeRelevantNGrams(fileTokens);
+			affectedFileTokens.add(fileTokens);
+		}
+		final Map<String, Integer> hidden = Maps.newHashMap();
+		for (final String word : dropped) {
+			hidden.put(word, model.getTrie().hideSymbol(word));
+		}
+		for (final ArrayList<Token> fileTokens : affectedFileTokens) {
+			model.addRelevantNGrams(fileTokens);
+		}
+
+		heldOut = file;
+		heldOutTokens = tokens;
+		affectedTokens = affectedFileTokens;
+		hiddenSymbols = hidden;
+		LOGGER.fine("Held out " + file + ", hiding " + dropped.size()
+				+ " words used in " + affected.size() + " other files");
+	}
+
+	/**
+	 * Put the held out file back into the model.
+	 */
+	public void restore() {
+		checkState(heldOut != null, "No file is held out");
+
+		for (final ArrayList<Token> fileTokens : affectedTokens) {
+			model.removeRelevantNGrams(fileTokens);
+		}
+		for (final Map.Entry<String, Integer> hidden : hiddenSymbols.entrySet()) {
+			model.getTrie().restoreSymbol(hidden.getKey(), hidden.getValue());
+		}
+		for (final ArrayList<Token> fileTokens : affectedTokens) {
+			model.addRelevantNGrams(fileTokens);
+		}
+		model.addRelevantNGrams(heldOutTokens);
+
+		heldOut = null;
+		heldOutTokens = null;
+		affectedTokens = null;
+		hiddenSymbols = null;
+	}
+}
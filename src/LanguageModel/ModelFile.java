@@ -0,0 +1,290 @@
+package LanguageModel;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import com.google.common.collect.Lists;
+
+import Trie.FrozenTrie;
+import Trie.LongTrie;
+import Trie.SymbolTable;
+
+/**
+ * The binary model file. It holds a header, the frozen trie arrays, those of
+ * its reverse index and the symbol table:
+ *
+ * <pre>
+ * int magic, int version, int nGramSize, int reserved,
+ * long payloadLength, long payloadCRC32,
+ * frozen trie (see FrozenTrie.writeTo),
+ * frozen reverse index (see FrozenTrie.reversed),
+ * int nIds, then per id: int length (-1 if unused), UTF-8 bytes
+ * </pre>
+ *
+ * The trie arrays are memory mapped when a model is read, so opening a model
+ * only costs decoding the symbol table.
+ */
+class ModelFile {
+
+	private static final Logger LOGGER = Logger.getLogger(ModelFile.class
+			.getName());
+
+	static final int MAGIC = 0x41534c4d; // "ASLM"
+	static final int VERSION = 4;
+
+	private static final int HEADER_SIZE = 32;
+
+	private static final byte[] NO_BYTES = new byte[0];
+
+	final int nGramSize;
+
+	final LongTrie<String> trie;
+
+	private ModelFile(final int size, final LongTrie<String> modelTrie) {
+		nGramSize = size;
+		trie = modelTrie;
+	}
+
+	/**
+	 * Open a model file. The trie of the returned model is frozen and backed
+	 * by the mapped file.
+	 *
+	 * @param file
+	 * @param verifyChecksum
+	 *            whether to check the whole payload against its CRC32
+	 * @return
+	 * @throws IOException
+	 */
+	static ModelFile read(final File file, final boolean verifyChecksum)
+			throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			final FileChannel channel = raf.getChannel();
+			final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(
+					FrozenTrie.BYTE_ORDER);
+			readFully(channel, header, 0);
+			header.flip();
+
+			if (header.getInt() != MAGIC) {
+				throw new IOException(file + " is not a model file");
+			}
+			final int version = header.getInt();
+			if (version != VERSION) {
+				throw new IOException("Unsupported model file version "
+						+ version);
+			}
+			final int nGramSize = header.getInt();
+			header.getInt(); // reserved
+			final long payloadLength = header.getLong();
+			final long expectedCrc = header.getLong();
+			if (HEADER_SIZE + payloadLength != channel.size()) {
+				throw new IOException("Truncated model file " + file);
+			}
+			if (verifyChecksum
+					&& checksum(channel, HEADER_SIZE, payloadLength) != expectedCrc) {
+				throw new IOException("Checksum mismatch in model file " + file);
+			}
+
+			final FrozenTrie frozen = FrozenTrie.map(channel, HEADER_SIZE);
+			final FrozenTrie reversed = FrozenTrie.map(channel, HEADER_SIZE
+					+ frozen.byteSize());
+			final long symbolsStart = HEADER_SIZE + frozen.byteSize()
+					+ reversed.byteSize();
+			final ByteBuffer symbolBuffer = channel.map(MapMode.READ_ONLY,
+					symbolsStart, channel.size() - symbolsStart).order(
+					FrozenTrie.BYTE_ORDER);
+
+			final int nIds = symbolBuffer.getInt();
+			final List<String> symbols = Lists.newArrayListWithCapacity(nIds);
+			byte[] scratch = new byte[64];
+			for (int i = 0; i < nIds; i++) {
+				final int length = symbolBuffer.getInt();
+				if (length < 0) {
+					symbols.add(null);
+					continue;
+				}
+				if (length > scratch.length) {
+					scratch = new byte[Math.max(length, 2 * scratch.length)];
+				}
+				symbolBuffer.get(scratch, 0, length);
+				symbols.add(new String(scratch, 0, length,
+						StandardCharsets.UTF_8));
+			}
+
+			LOGGER.info("Opened model " + file + " with " + frozen.size()
+					+ " nodes and " + nIds + " symbols");
+			return new ModelFile(nGramSize, new LongTrie<String>(
+					AbstractNGramLM.UNK_Symbol, symbols, frozen, reversed));
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Write the model. A trie that is not frozen is frozen into a temporary
+	 * copy first. The model is written to a temporary file that then replaces
+	 * the file at once, since the trie being written, and the tries of other
+	 * processes, may be mapped from the file being replaced.
+	 *
+	 * @param file
+	 * @param nGramSize
+	 * @param trie
+	 * @throws IOException
+	 */
+	static void write(final File file, final int nGramSize,
+			final LongTrie<String> trie) throws IOException {
+		final FrozenTrie frozen = trie.toFrozenTrie();
+		final FrozenTrie reversed = trie.isFrozen() ? trie
+				.getFrozenReverseIndex() : frozen.reversed();
+		final SymbolTable<String> symbols = trie.getSymbolTable();
+
+		final File temporary = File.createTempFile(file.getName(), ".tmp",
+				file.getAbsoluteFile().getParentFile());
+		try {
+			writeTo(temporary, nGramSize, frozen, reversed, symbols);
+			Files.move(temporary.toPath(), file.toPath(),
+					StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			if (temporary.exists() && !temporary.delete()) {
+				LOGGER.warning("Could not delete " + temporary);
+			}
+		}
+	}
+
+	private static void writeTo(final File file, final int nGramSize,
+			final FrozenTrie frozen, final FrozenTrie reversed,
+			final SymbolTable<String> symbols) throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			final FileChannel channel = raf.getChannel();
+			channel.position(HEADER_SIZE);
+
+			final ChecksummedChannel payload = new ChecksummedChannel(channel);
+			frozen.writeTo(payload);
+			reversed.writeTo(payload);
+
+			ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(
+					FrozenTrie.BYTE_ORDER);
+			final int nIds = symbols.idLimit();
+			buffer.putInt(nIds);
+			for (int id = 0; id < nIds; id++) {
+				final String symbol = symbols.getSymbol(id);
+				final byte[] bytes = symbol == null ? NO_BYTES : symbol
+						.getBytes(StandardCharsets.UTF_8);
+				if (buffer.remaining() < 4 + bytes.length) {
+					buffer.flip();
+					payload.writeFully(buffer);
+					buffer.clear();
+					if (buffer.capacity() < 4 + bytes.length) {
+						buffer = ByteBuffer.allocate(4 + bytes.length).order(
+								FrozenTrie.BYTE_ORDER);
+					}
+				}
+				buffer.putInt(symbol == null ? -1 : bytes.length);
+				buffer.put(bytes);
+			}
+			buffer.flip();
+			payload.writeFully(buffer);
+
+			final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(
+					FrozenTrie.BYTE_ORDER);
+			header.putInt(MAGIC).putInt(VERSION).putInt(nGramSize).putInt(0);
+			header.putLong(payload.length).putLong(payload.crc.getValue());
+			header.flip();
+			channel.position(0);
+			while (header.hasRemaining()) {
+				channel.write(header);
+			}
+			channel.force(true);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static long checksum(final FileChannel channel, final long from,
+			final long length) throws IOException {
+		final CRC32 crc = new CRC32();
+		final ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+		long position = from;
+		final long end = from + length;
+		while (position < end) {
+			buffer.clear();
+			buffer.limit((int) Math.min(buffer.capacity(), end - position));
+			readFully(channel, buffer, position);
+			buffer.flip();
+			position += buffer.remaining();
+			crc.update(buffer);
+		}
+		return crc.getValue();
+	}
+
+	private static void readFully(final FileChannel channel,
+			final ByteBuffer buffer, final long position) throws IOException {
+		long current = position;
+		while (buffer.hasRemaining()) {
+			final int read = channel.read(buffer, current);
+			if (read < 0) {
+				throw new IOException("Unexpected end of model file");
+			}
+			current += read;
+		}
+	}
+
+	/**
+	 * Forwards writes to a channel, keeping the CRC32 and length of
+	 * everything written.
+	 */
+	private static class ChecksummedChannel implements WritableByteChannel {
+
+		private final WritableByteChannel channel;
+
+		final CRC32 crc = new CRC32();
+
+		long length = 0;
+
+		ChecksummedChannel(final WritableByteChannel target) {
+			channel = target;
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+
+		@Override
+		public boolean isOpen() {
+			return channel.isOpen();
+		}
+
+		@Override
+		public int write(final ByteBuffer src) throws IOException {
+			final ByteBuffer written = src.duplicate();
+			final int nWritten = channel.write(src);
+			checkArgument(nWritten >= 0);
+			written.limit(written.position() + nWritten);
+			crc.update(written);
+			length += nWritten;
+			return nWritten;
+		}
+
+		void writeFully(final ByteBuffer src) throws IOException {
+			while (src.hasRemaining()) {
+				write(src);
+			}
+		}
+	}
+}
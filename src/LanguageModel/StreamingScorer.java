@@ -0,0 +1,128 @@
+package LanguageModel;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Iterator;
+
+import Tokenizer.Token;
+import Tokenizer.TokenCursor;
+import Trie.SymbolTable;
+
+/**
+ * Scores a stream of tokens one at a time, as
+ * {@link AbstractNGramLM#getLogProbOfSentence} scores a whole sentence, but
+ * keeping only the symbol ids of the last n tokens. Each token costs one
+ * symbol lookup and one n-gram probability, and nothing is allocated unless
+ * the model's probability cache is enabled.
+ *
+ * A scorer is not thread safe. Get one per stream from
+ * {@link AbstractNGramLM#newStreamingScorer}.
+ */
+public class StreamingScorer {
+
+	private final AbstractNGramLM model;
+
+	private final int n;
+
+	// The ids of the last n tokens, in a ring buffer written twice, so that
+	// the window ending at any slot is the contiguous range
+	// [slot + 1, slot + n + 1).
+	private final int[] window;
+
+	private long nTokens = 0;
+
+	private double logProb = 0;
+
+	StreamingScorer(final AbstractNGramLM model) {
+		this.model = model;
+		n = model.getN();
+		window = new int[2 * n];
+	}
+
+	/**
+	 * Add the next token of the stream and return its log2 probability given
+	 * the tokens before it. Like the first token of a sentence, a token with
+	 * no context is not scored and 0 is returned.
+	 *
+	 * @param token
+	 * @return
+	 */
+	public double next(final String token) {
+		return nextSymbol(model.getTrie().getSymbolId(checkNotNull(token)));
+	}
+
+	/**
+	 * Same as {@link #next(String)} for the symbol id of the token.
+	 *
+	 * @param id
+	 * @return
+	 */
+	double nextSymbol(final int id) {
+		final int slot = (int) (nTokens % n);
+		window[slot] = id;
+		window[slot + n] = id;
+		nTokens++;
+
+		final int length = (int) Math.min(nTokens, n);
+		if (length < 2) {
+			return 0;
+		}
+		final int to = slot + n + 1;
+		final double tokenLogProb = model.getLogProb(window, to - length, to);
+		logProb += tokenLogProb;
+		return tokenLogProb;
+	}
+
+	/**
+	 * Add all the remaining tokens, e.g. those of
+	 * {@link Tokenizer.JavaTokenizer#getTokenList}.
+	 *
+	 * @param tokens
+	 * @return the log2 probability of the added tokens
+	 */
+	public double nextAll(final Iterator<Token> tokens) {
+		double addedLogProb = 0;
+		while (tokens.hasNext()) {
+			addedLogProb += next(tokens.next().token);
+		}
+		return addedLogProb;
+	}
+
+	/**
+	 * Add all the remaining tokens of the cursor, e.g. those of a file of any
+	 * size from {@link Tokenizer.JavaTokenizer#getTokenCursor(java.io.File)}.
+	 *
+	 * @param tokens
+	 * @return the log2 probability of the added tokens
+	 */
+	public double nextAll(final TokenCursor tokens) {
+		final SymbolTable<String> symbols = model.getTrie().getSymbolTable();
+		double addedLogProb = 0;
+		while (tokens.next()) {
+			addedLogProb += nextSymbol(tokens.getSymbolId(symbols));
+		}
+		return addedLogProb;
+	}
+
+	/**
+	 * The log2 probability of all the tokens so far.
+	 */
+	public double getLogProb() {
+		return logProb;
+	}
+
+	/**
+	 * The number of tokens so far.
+	 */
+	public long getTokenCount() {
+		return nTokens;
+	}
+
+	/**
+	 * Start a new stream.
+	 */
+	public void reset() {
+		nTokens = 0;
+		logProb = 0;
+	}
+}
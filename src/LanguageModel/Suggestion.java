@@ -0,0 +1,46 @@
+package LanguageModel;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.ComparisonChain;
+
+/**
+ * A possible next token and its probability given the tokens before it.
+ * Suggestions sort from the most to the least likely.
+ */
+public class Suggestion implements Comparable<Suggestion> {
+	public final String token;
+
+	public final double probability;
+
+	public Suggestion(String token, double probability) {
+		this.token = token;
+		this.probability = probability;
+	}
+
+	@Override
+	public int compareTo(final Suggestion other) {
+		return ComparisonChain.start()
+				.compare(other.probability, probability)
+				.compare(token, other.token).result();
+	}
+
+	@Override
+	public boolean equals(final Object other) {
+		if (!(other instanceof Suggestion)) {
+			return false;
+		}
+		final Suggestion s = (Suggestion) other;
+		return Objects.equal(token, s.token)
+				&& Objects.equal(probability, s.probability);
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hashCode(token, probability);
+	}
+
+	@Override
+	public String toString() {
+		return token + ":" + String.format("%.4f", probability);
+	}
+}
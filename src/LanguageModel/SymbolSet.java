@@ -0,0 +1,49 @@
+package LanguageModel;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A set of non-negative symbol ids in a fixed open addressing table, sized
+ * for the number of ids it will hold rather than for the whole vocabulary,
+ * so that deduplicating a few candidates costs a probe each and nothing in
+ * proportion to the alphabet.
+ */
+class SymbolSet {
+
+	// id + 1, so that a zeroed slot is empty
+	private final int[] slots;
+
+	/**
+	 * @param capacity
+	 *            the most ids that will be added
+	 */
+	SymbolSet(final int capacity) {
+		checkArgument(capacity >= 0);
+		slots = new int[Integer.highestOneBit(Math.max(capacity, 1) * 2 - 1) * 2];
+	}
+
+	/**
+	 * Add the id to the set.
+	 *
+	 * @param id
+	 * @return whether the id was not already in the set
+	 */
+	boolean add(final int id) {
+		checkArgument(id >= 0);
+		final int mask = slots.length - 1;
+		int slot = hash(id) & mask;
+		while (slots[slot] != 0) {
+			if (slots[slot] == id + 1) {
+				return false;
+			}
+			slot = (slot + 1) & mask;
+		}
+		slots[slot] = id + 1;
+		return true;
+	}
+
+	private static int hash(final int id) {
+		final int h = id * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
@@ -0,0 +1,234 @@
+package LanguageModel;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+import com.google.common.collect.Lists;
+
+import NGram.NGram;
+import Tokenizer.JavaTokenizer;
+import Trie.FrozenTrie;
+import Trie.LongTrie;
+
+/**
+ * Samples tokens from a frozen model, like
+ * {@link AbstractNGramLM#pickRandom}, in constant time per token. The
+ * productions of a context are drawn from a Walker alias table that is built
+ * the first time the context is sampled and kept for the life of the sampler,
+ * which samples the trie that was frozen when it was created.
+ *
+ * The randomness comes from an explicit {@link SplittableRandom}, so a seed
+ * gives the same tokens every time. A sampler can be shared by any number of
+ * threads, each with its own random source.
+ */
+public class TokenSampler {
+
+	private final AbstractNGramLM model;
+
+	private final FrozenTrie frozen;
+
+	// by context node
+	private final ConcurrentMap<Integer, AliasTable> aliasTables = new ConcurrentHashMap<Integer, AliasTable>();
+
+	/**
+	 * Draws the index of a child of a node in proportion to the child
+	 * counts.
+	 */
+	private static final class AliasTable {
+		private final double[] probabilities;
+		private final int[] aliases;
+
+		// Vose's method
+		AliasTable(final long[] counts, final long sum) {
+			final int n = counts.length;
+			probabilities = new double[n];
+			aliases = new int[n];
+
+			final double[] scaled = new double[n];
+			final ArrayDeque<Integer> small = new ArrayDeque<Integer>();
+			final ArrayDeque<Integer> large = new ArrayDeque<Integer>();
+			for (int i = 0; i < n; i++) {
+				scaled[i] = ((double) counts[i]) * n / sum;
+				if (scaled[i] < 1) {
+					small.add(i);
+				} else {
+					large.add(i);
+				}
+			}
+			while (!small.isEmpty() && !large.isEmpty()) {
+				final int less = small.poll();
+				final int more = large.poll();
+				probabilities[less] = scaled[less];
+				aliases[less] = more;
+				scaled[more] = (scaled[more] + scaled[less]) - 1;
+				if (scaled[more] < 1) {
+					small.add(more);
+				} else {
+					large.add(more);
+				}
+			}
+			// what is left is 1 up to rounding
+			while (!large.isEmpty()) {
+				probabilities[large.poll()] = 1;
+			}
+			while (!small.isEmpty()) {
+				probabilities[small.poll()] = 1;
+			}
+		}
+
+		int sample(final SplittableRandom random) {
+			final int i = random.nextInt(probabilities.length);
+			return random.nextDouble() < probabilities[i] ? i : aliases[i];
+		}
+	}
+
+	TokenSampler(final AbstractNGramLM model) {
+		this.model = model;
+		frozen = model.getTrie().getFrozenTrie();
+		checkState(frozen != null, "The model must be frozen before it is sampled");
+	}
+
+	/**
+	 * Pick a production of the prefix in proportion to its count, backing
+	 * off to shorter prefixes when the prefix has no production.
+	 *
+	 * @param prefix
+	 * @param random
+	 * @return
+	 */
+	public String pickRandom(final NGram<String> prefix,
+			final SplittableRandom random) {
+		final int[] ids = model.getTrie().getSymbolIds(prefix, false);
+		return getSymbol(sampleSymbol(ids, 0, ids.length, random));
+	}
+
+	/**
+	 * Same as {@link #pickRandom(NGram, SplittableRandom)} for the symbol ids
+	 * [from, to) of the prefix, returning the id of the production.
+	 *
+	 * @param contextIds
+	 * @param from
+	 * @param to
+	 * @param random
+	 * @return
+	 */
+	public int sampleSymbol(final int[] contextIds, final int from,
+			final int to, final SplittableRandom random) {
+		for (int start = from; start <= to; start++) {
+			final int node = frozen.getTrieNodeForInput(contextIds, start, to,
+					false, FrozenTrie.ROOT);
+			if (node == FrozenTrie.NO_NODE || frozen.getChildCount(node) == 0) {
+				continue;
+			}
+			final int child = frozen.childAt(node,
+					getAliasTable(node).sample(random));
+			return frozen.getSymbol(child);
+		}
+		throw new IllegalStateException("The model has no productions");
+	}
+
+	/**
+	 * Sample a token sequence that follows a sentence start, up to the
+	 * sentence end or the maximum length.
+	 *
+	 * @param maxLength
+	 *            the maximum number of sampled tokens
+	 * @param random
+	 * @return
+	 */
+	public List<String> sampleSequence(final int maxLength,
+			final SplittableRandom random) {
+		checkArgument(maxLength >= 0);
+		final LongTrie<String> trie = model.getTrie();
+		final int contextSize = model.getN() - 1;
+		final int end = trie.getSymbolId(JavaTokenizer.SENTENCE_END);
+
+		final int[] ids = new int[maxLength + 1];
+		ids[0] = trie.getSymbolId(JavaTokenizer.SENTENCE_START);
+		final List<String> sequence = Lists.newArrayListWithCapacity(maxLength);
+		for (int i = 1; i <= maxLength; i++) {
+			ids[i] = sampleSymbol(ids, Math.max(0, i - contextSize), i, random);
+			sequence.add(getSymbol(ids[i]));
+			if (ids[i] == end) {
+				break;
+			}
+		}
+		return sequence;
+	}
+
+	/**
+	 * Sample many sequences in parallel. Each sequence has its own random
+	 * source, split from one seeded with the given seed, so the result only
+	 * depends on the seed.
+	 *
+	 * @param nSequences
+	 * @param maxLength
+	 * @param seed
+	 * @param pool
+	 * @return
+	 */
+	public List<List<String>> sampleSequences(final int nSequences,
+			final int maxLength, final long seed, final ForkJoinPool pool) {
+		checkArgument(nSequences >= 0);
+		final SplittableRandom root = new SplittableRandom(seed);
+		final List<SplittableRandom> randoms = Lists
+				.newArrayListWithCapacity(nSequences);
+		for (int i = 0; i < nSequences; i++) {
+			randoms.add(root.split());
+		}
+
+		final List<ForkJoinTask<List<String>>> tasks = Lists
+				.newArrayListWithCapacity(nSequences);
+		for (final SplittableRandom random : randoms) {
+			tasks.add(pool.submit(new RecursiveTask<List<String>>() {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected List<String> compute() {
+					return sampleSequence(maxLength, random);
+				}
+			}));
+		}
+		final List<List<String>> sequences = new ArrayList<List<String>>(
+				nSequences);
+		for (final ForkJoinTask<List<String>> task : tasks) {
+			sequences.add(task.join());
+		}
+		return sequences;
+	}
+
+	private AliasTable getAliasTable(final int node) {
+		AliasTable table = aliasTables.get(node);
+		if (table == null) {
+			final int nChildren = frozen.getChildCount(node);
+			final long[] counts = new long[nChildren];
+			long sum = 0;
+			for (int i = 0; i < nChildren; i++) {
+				counts[i] = frozen.getNodeCount(frozen.childAt(node, i));
+				sum += counts[i];
+			}
+			checkState(sum > 0);
+			table = new AliasTable(counts, sum);
+			final AliasTable existing = aliasTables.putIfAbsent(node, table);
+			if (existing != null) {
+				table = existing;
+			}
+		}
+		return table;
+	}
+
+	private String getSymbol(final int id) {
+		final String symbol = model.getTrie().getSymbolFromKey(id);
+		return symbol != null ? symbol : AbstractNGramLM.UNK_Symbol;
+	}
+}
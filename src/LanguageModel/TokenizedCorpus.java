@@ -0,0 +1,504 @@
+package LanguageModel;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import Tokenizer.JavaTokenizer;
+import Tokenizer.TokenCursor;
+
+/**
+ * The tokens of a list of files, read and scanned once. Every distinct token
+ * is interned to a dense word id, and a file is kept as one int code per
+ * token: the word id shifted left by one, with the lowest bit set for
+ * identifiers. The words are counted as the files are scanned, so the
+ * vocabulary and the n-grams both come from the same pass.
+ *
+ * Files are kept in memory up to a budget of tokens; the files past the
+ * budget are spilled to a temporary file and read back when asked for.
+ *
+ * With a {@link CorpusCache}, the files that did not change since the cache
+ * was written are not read again, only their codes are.
+ *
+ * A corpus can also be read from a {@link CorpusSource}, whose entries are
+ * numbered in the order they are read, as if they were files.
+ */
+class TokenizedCorpus implements Closeable {
+
+	private static final Logger LOGGER = Logger.getLogger(TokenizedCorpus.class
+			.getName());
+
+	// files scanned by one fork-join task before it stops splitting
+	private static final int FILES_PER_TASK = 8;
+
+	// empty for a corpus read from a source
+	private final List<File> files;
+	private int size;
+
+	private final ConcurrentMap<String, Integer> wordIds = new ConcurrentHashMap<String, Integer>();
+	private final List<String> words = new ArrayList<String>();
+
+	// occurrences of every word id, once the corpus is tokenized
+	private long[] wordCounts;
+
+	// the files kept in memory and where each spilled file starts in the
+	// spill file, and its length; the arrays only grow for a source, and are
+	// only written while holding this
+	private int[][] inMemory;
+	private long[] spillOffsets;
+	private int[] spillLengths;
+	private final long maxTokensInMemory;
+	private final AtomicLong tokensInMemory = new AtomicLong();
+	private final AtomicLong spillEnd = new AtomicLong();
+	private File spillFile;
+	private FileChannel spill;
+
+	private final AtomicLong bytesRead = new AtomicLong();
+	private final AtomicLong tokensRead = new AtomicLong();
+
+	// the size and modification time of each file, before it was read
+	private final long[] fileSizes;
+	private final long[] fileLastModified;
+
+	// the cache being read, and the word id of each of its words, -1 until
+	// the word is seen
+	private final CorpusCache cache;
+	private final int[] cacheWordIds;
+	private final AtomicInteger filesFromCache = new AtomicInteger();
+
+	private TokenizedCorpus(final List<File> files,
+			final long maxTokensInMemory, final CorpusCache cache) {
+		this.files = files;
+		size = files.size();
+		this.maxTokensInMemory = maxTokensInMemory;
+		this.cache = cache;
+		inMemory = new int[files.size()][];
+		spillOffsets = new long[files.size()];
+		spillLengths = new int[files.size()];
+		fileSizes = new long[files.size()];
+		fileLastModified = new long[files.size()];
+		cacheWordIds = new int[cache != null ? cache.getWordCount() : 0];
+		Arrays.fill(cacheWordIds, -1);
+	}
+
+	/**
+	 * Read and scan all the files on the pool.
+	 *
+	 * @param files
+	 * @param tokenizer
+	 * @param pool
+	 * @param maxTokensInMemory
+	 *            the number of tokens kept in memory, past which files are
+	 *            spilled to disk
+	 * @return
+	 * @throws IOException
+	 */
+	static TokenizedCorpus tokenize(final List<File> files,
+			final JavaTokenizer tokenizer, final ForkJoinPool pool,
+			final long maxTokensInMemory) throws IOException {
+		return tokenize(files, tokenizer, pool, maxTokensInMemory, null);
+	}
+
+	/**
+	 * Same as {@link #tokenize(List, JavaTokenizer, ForkJoinPool, long)},
+	 * taking the files that did not change from the cache file and only
+	 * scanning the others. The cache file is then rewritten with all the
+	 * files, unless it already held exactly them.
+	 *
+	 * @param files
+	 * @param tokenizer
+	 * @param pool
+	 * @param maxTokensInMemory
+	 * @param cacheFile
+	 *            null for no cache
+	 * @return
+	 * @throws IOException
+	 */
+	static TokenizedCorpus tokenize(final List<File> files,
+			final JavaTokenizer tokenizer, final ForkJoinPool pool,
+			final long maxTokensInMemory, final File cacheFile)
+			throws IOException {
+		final CorpusCache cache = cacheFile != null ? CorpusCache.open(
+				cacheFile, tokenizer) : null;
+		final TokenizedCorpus corpus = new TokenizedCorpus(files,
+				maxTokensInMemory, cache);
+		final long start = System.nanoTime();
+		try {
+			corpus.wordCounts = pool.invoke(corpus.new TokenizingTask(
+					tokenizer, 0, files.size()));
+		} catch (final UncheckedIOException e) {
+			corpus.close();
+			throw e.getCause();
+		} finally {
+			if (cache != null) {
+				cache.close();
+			}
+		}
+		final int nFromCache = corpus.filesFromCache.get();
+		LOGGER.info("Tokenized " + files.size() + " files once in "
+				+ (System.nanoTime() - start) / 1E9 + "s, " + nFromCache
+				+ " of them from the corpus cache, saving a second read of "
+				+ corpus.bytesRead.get() + " bytes and a second scan of "
+				+ corpus.tokensRead.get() + " tokens (" + corpus.spillEnd.get()
+				/ 4 + " tokens spilled to disk)");
+
+		if (cacheFile != null
+				&& (cache == null || nFromCache < files.size() || cache
+						.getFileCount() != files.size())) {
+			try {
+				CorpusCache.write(cacheFile, tokenizer, corpus);
+			} catch (final IOException e) {
+				LOGGER.warning("Could not write the corpus cache " + cacheFile
+						+ ": " + e);
+			}
+		}
+		return corpus;
+	}
+
+	/**
+	 * Read and scan all the entries of the source, as they are read, on the
+	 * pool. There is no corpus cache for sources.
+	 *
+	 * @param source
+	 * @param tokenizer
+	 * @param pool
+	 * @param maxTokensInMemory
+	 * @return
+	 * @throws IOException
+	 */
+	static TokenizedCorpus tokenize(final CorpusSource source,
+			final JavaTokenizer tokenizer, final ForkJoinPool pool,
+			final long maxTokensInMemory) throws IOException {
+		final TokenizedCorpus corpus = new TokenizedCorpus(
+				Collections.<File> emptyList(), maxTokensInMemory, null);
+		final long start = System.nanoTime();
+		// the word counts of each worker, summed once all entries are read
+		final ConcurrentMap<Thread, long[]> workerCounts = new ConcurrentHashMap<Thread, long[]>();
+		try {
+			corpus.size = source.forEachEntry(new CorpusSource.EntryHandler() {
+				@Override
+				public void handle(final int index,
+						final CorpusSource.Entry entry) throws IOException {
+					final long[] workerCount = workerCounts.get(Thread
+							.currentThread());
+					workerCounts.put(Thread.currentThread(), corpus.scan(index,
+							entry.getTokenCursor(tokenizer),
+							Math.max(0, entry.size),
+							workerCount != null ? workerCount : new long[0]));
+					corpus.bytesRead.addAndGet(Math.max(0, entry.size));
+				}
+			}, pool);
+		} catch (final IOException | RuntimeException e) {
+			corpus.close();
+			throw e;
+		}
+		corpus.ensureCapacity(corpus.size);
+
+		final long[] wordCounts = new long[corpus.words.size()];
+		for (final long[] workerCount : workerCounts.values()) {
+			// grown past the last word id, with zeros
+			final int n = Math.min(workerCount.length, wordCounts.length);
+			for (int i = 0; i < n; i++) {
+				wordCounts[i] += workerCount[i];
+			}
+		}
+		corpus.wordCounts = wordCounts;
+		LOGGER.info("Tokenized " + corpus.size + " entries of " + source
+				+ " once in " + (System.nanoTime() - start) / 1E9
+				+ "s, saving a second read of " + corpus.bytesRead.get()
+				+ " bytes and a second scan of " + corpus.tokensRead.get()
+				+ " tokens (" + corpus.spillEnd.get() / 4
+				+ " tokens spilled to disk)");
+		return corpus;
+	}
+
+	/**
+	 * Scans a range of the files, splitting the range in halves until it is
+	 * small enough, and returns the word counts of the range.
+	 */
+	private class TokenizingTask extends RecursiveTask<long[]> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final JavaTokenizer tokenizer;
+		private final int from;
+		private final int to;
+
+		TokenizingTask(final JavaTokenizer tokenizer, final int from,
+				final int to) {
+			this.tokenizer = tokenizer;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected long[] compute() {
+			if (to - from <= FILES_PER_TASK) {
+				long[] counts = new long[0];
+				for (int i = from; i < to; i++) {
+					try {
+						counts = tokenizeFile(i, tokenizer, counts);
+					} catch (final IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				}
+				return counts;
+			}
+
+			final int middle = (from + to) >>> 1;
+			final TokenizingTask left = new TokenizingTask(tokenizer, from,
+					middle);
+			left.fork();
+			final long[] rightCounts = new TokenizingTask(tokenizer, middle, to)
+					.compute();
+			final long[] leftCounts = left.join();
+
+			// add the shorter counts into the longer ones
+			final long[] longer = leftCounts.length >= rightCounts.length ? leftCounts
+					: rightCounts;
+			final long[] shorter = longer == leftCounts ? rightCounts
+					: leftCounts;
+			for (int i = 0; i < shorter.length; i++) {
+				longer[i] += shorter[i];
+			}
+			return longer;
+		}
+	}
+
+	private long[] tokenizeFile(final int index, final JavaTokenizer tokenizer,
+			long[] counts) throws IOException {
+		final File file = files.get(index);
+		fileSizes[index] = file.length();
+		fileLastModified[index] = file.lastModified();
+
+		int[] codes = cache != null ? cache.getCodes(file, fileSizes[index],
+				fileLastModified[index]) : null;
+		if (codes != null) {
+			for (int i = 0; i < codes.length; i++) {
+				final int cacheId = getWordId(codes[i]);
+				int id = cacheWordIds[cacheId];
+				if (id < 0) {
+					// racing threads intern the same word to the same id
+					id = intern(cache.getWord(cacheId));
+					cacheWordIds[cacheId] = id;
+				}
+				codes[i] = id << 1 | (codes[i] & 1);
+				counts = count(id, counts);
+			}
+			filesFromCache.incrementAndGet();
+			store(index, codes);
+			return counts;
+		}
+		counts = scan(index, tokenizer.getTokenCursor(file), fileSizes[index],
+				counts);
+		bytesRead.addAndGet(fileSizes[index]);
+		return counts;
+	}
+
+	/**
+	 * Scan the tokens of the file with the given index, keep their codes
+	 * and count them.
+	 *
+	 * @param index
+	 * @param tokens
+	 * @param size
+	 *            the size of the file in bytes
+	 * @param counts
+	 * @return the counts, grown if needed
+	 * @throws IOException
+	 */
+	private long[] scan(final int index, final TokenCursor tokens,
+			final long size, long[] counts) throws IOException {
+		// about one token every four bytes of code
+		int[] codes = new int[(int) Math.min(16 + size / 4,
+				Integer.MAX_VALUE - 8)];
+		int nTokens = 0;
+		while (tokens.next()) {
+			final int id = intern(tokens.getToken());
+			if (nTokens == codes.length) {
+				codes = Arrays.copyOf(codes, 2 * codes.length);
+			}
+			codes[nTokens++] = id << 1 | (tokens.isIdentifier() ? 1 : 0);
+			counts = count(id, counts);
+		}
+		codes = Arrays.copyOf(codes, nTokens);
+		tokensRead.addAndGet(nTokens);
+		store(index, codes);
+		return counts;
+	}
+
+	private void store(final int index, final int[] codes) throws IOException {
+		if (tokensInMemory.addAndGet(codes.length) <= maxTokensInMemory) {
+			synchronized (this) {
+				ensureCapacity(index + 1);
+				inMemory[index] = codes;
+			}
+		} else {
+			tokensInMemory.addAndGet(-codes.length);
+			spill(index, codes);
+		}
+	}
+
+	private synchronized void ensureCapacity(final int capacity) {
+		if (capacity > inMemory.length) {
+			final int newCapacity = Math.max(capacity, 2 * inMemory.length);
+			inMemory = Arrays.copyOf(inMemory, newCapacity);
+			spillOffsets = Arrays.copyOf(spillOffsets, newCapacity);
+			spillLengths = Arrays.copyOf(spillLengths, newCapacity);
+		}
+	}
+
+	private static long[] count(final int id, long[] counts) {
+		if (id >= counts.length) {
+			counts = Arrays.copyOf(counts, Math.max(id + 1, 2 * counts.length));
+		}
+		counts[id]++;
+		return counts;
+	}
+
+	private int intern(final String word) {
+		Integer id = wordIds.get(word);
+		if (id == null) {
+			synchronized (words) {
+				id = wordIds.get(word);
+				if (id == null) {
+					id = words.size();
+					words.add(word);
+					wordIds.put(word, id);
+				}
+			}
+		}
+		return id;
+	}
+
+	private void spill(final int index, final int[] codes) throws IOException {
+		final ByteBuffer buffer = ByteBuffer.allocate(4 * codes.length);
+		buffer.asIntBuffer().put(codes);
+		final long offset = spillEnd.getAndAdd(buffer.capacity());
+		final FileChannel channel = getSpill();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer, offset + buffer.position());
+		}
+		synchronized (this) {
+			ensureCapacity(index + 1);
+			spillOffsets[index] = offset;
+			spillLengths[index] = codes.length;
+		}
+	}
+
+	private synchronized FileChannel getSpill() throws IOException {
+		if (spill == null) {
+			spillFile = File.createTempFile("tokens", ".spill");
+			spillFile.deleteOnExit();
+			spill = new RandomAccessFile(spillFile, "rw").getChannel();
+		}
+		return spill;
+	}
+
+	int size() {
+		return size;
+	}
+
+	File getFile(final int index) {
+		return files.get(index);
+	}
+
+	long getFileSize(final int index) {
+		return fileSizes[index];
+	}
+
+	long getFileLastModified(final int index) {
+		return fileLastModified[index];
+	}
+
+	/**
+	 * Return the token codes of the file with the given index, reading them
+	 * back if they were spilled.
+	 *
+	 * @param index
+	 * @return
+	 * @throws IOException
+	 */
+	int[] getCodes(final int index) throws IOException {
+		final int[] codes = inMemory[index];
+		if (codes != null) {
+			return codes;
+		}
+		final ByteBuffer buffer = ByteBuffer.allocate(4 * spillLengths[index]);
+		while (buffer.hasRemaining()) {
+			if (spill.read(buffer, spillOffsets[index] + buffer.position()) < 0) {
+				throw new EOFException("Truncated spill file " + spillFile);
+			}
+		}
+		buffer.flip();
+		final int[] spilled = new int[spillLengths[index]];
+		buffer.asIntBuffer().get(spilled);
+		return spilled;
+	}
+
+	static int getWordId(final int code) {
+		return code >>> 1;
+	}
+
+	static boolean isIdentifier(final int code) {
+		return (code & 1) != 0;
+	}
+
+	String getWord(final int wordId) {
+		return words.get(wordId);
+	}
+
+	int getWordCount() {
+		return words.size();
+	}
+
+	/**
+	 * Return the words seen more than threshold times, as
+	 * {@link VocabularyBuilder#buildVocabulary} would.
+	 *
+	 * @param threshold
+	 * @return
+	 */
+	Set<String> getVocabulary(final int threshold) {
+		final Set<String> vocabulary = new HashSet<String>();
+		for (int i = 0; i < words.size(); i++) {
+			if (wordCounts[i] > threshold) {
+				vocabulary.add(words.get(i));
+			}
+		}
+		LOGGER.info("Vocabulary built, with " + vocabulary.size() + " words");
+		return vocabulary;
+	}
+
+	/**
+	 * Delete the spill file, if any.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (spill != null) {
+			spill.close();
+			spill = null;
+			if (!spillFile.delete()) {
+				LOGGER.warning("Could not delete " + spillFile);
+			}
+		}
+	}
+}
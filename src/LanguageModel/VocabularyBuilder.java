@@ -1,51 +1,329 @@
 package LanguageModel;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayDeque;
+import java.io.UncheckedIOException;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
 import java.util.logging.Logger;
 
+import com.google.common.collect.ComparisonChain;
 import com.google.common.collect.HashMultiset_CustomFieldSerializer;
 import com.google.common.collect.Multiset;
 import com.google.common.collect.Multiset.Entry;
-import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Multisets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 
 import Tokenizer.JavaTokenizer;
+import Tokenizer.TokenCursor;
 
 
 
 public class VocabularyBuilder {
 	private static Logger LOGGER = Logger.getLogger(VocabularyBuilder.class.getName());
 	
+	// words kept by each task per word of a bounded vocabulary
+	public static final int HEAVY_HITTERS_SLACK = 4;
+	
+	// slices of the files counted separately per worker of the pool
+	private static final int SLICES_PER_WORKER = 4;
+	
 	public static Set<String> buildVocabulary(Collection<File> files, JavaTokenizer tokenizer, int threshold) throws IOException{
-		Multiset<String> vocabulary = HashMultiset.create();
+		return buildVocabulary(files, tokenizer, threshold, ForkJoinPool.commonPool());
+	}
+	
+	/**
+	 * Build the vocabulary on a fork-join pool. Each task counts the tokens of
+	 * a slice of the files into its own table, then each shard of the words,
+	 * by hash, is summed over all the tables and pruned by another task.
+	 *
+	 * @param files
+	 * @param tokenizer
+	 * @param threshold
+	 * @param pool
+	 * @return
+	 * @throws IOException
+	 */
+	public static Set<String> buildVocabulary(Collection<File> files, JavaTokenizer tokenizer, int threshold, ForkJoinPool pool) throws IOException{
+		return buildVocabulary(files, tokenizer, threshold, Integer.MAX_VALUE, pool);
+	}
+	
+	/**
+	 * Build a vocabulary of at most maxVocabularySize words, the most frequent
+	 * ones. To bound memory, each task only keeps a heavy hitters summary of
+	 * {@link #HEAVY_HITTERS_SLACK} times that many words, so the counts, and
+	 * the words kept when several are about as frequent, are estimates.
+	 * Without a bound the counts are exact.
+	 *
+	 * @param files
+	 * @param tokenizer
+	 * @param threshold
+	 * @param maxVocabularySize
+	 * @param pool
+	 * @return
+	 * @throws IOException
+	 */
+	public static Set<String> buildVocabulary(Collection<File> files, JavaTokenizer tokenizer, int threshold, int maxVocabularySize, ForkJoinPool pool) throws IOException{
+		checkArgument(maxVocabularySize > 0);
+		final List<File> fileList = Lists.newArrayList(files);
+		final int capacity = (int) Math.min(Integer.MAX_VALUE,
+				(long) HEAVY_HITTERS_SLACK * maxVocabularySize);
+		
+		// a few slices per worker, so that slow files even out
+		final int nSlices = Math.max(1, Math.min(fileList.size(),
+				SLICES_PER_WORKER * pool.getParallelism()));
+		final List<ForkJoinTask<WordCounts>> counting = Lists.newArrayList();
+		for (int i = 0; i < nSlices; i++) {
+			counting.add(pool.submit(new CountingTask(fileList,
+					(int) ((long) i * fileList.size() / nSlices),
+					(int) ((long) (i + 1) * fileList.size() / nSlices),
+					tokenizer, capacity)));
+		}
+		final WordCounts[] tables = new WordCounts[nSlices];
+		try {
+			for (int i = 0; i < nSlices; i++) {
+				tables[i] = counting.get(i).join();
+			}
+		} catch (final UncheckedIOException e) {
+			throw e.getCause();
+		}
+		return selectVocabulary(tables, threshold, maxVocabularySize, pool);
+	}
+	
+	/**
+	 * Build the vocabulary of the java files of a source, e.g. source jars
+	 * or tarballs, streamed out of it without extracting it; see
+	 * {@link #buildVocabulary(Collection, JavaTokenizer, int, ForkJoinPool)}.
+	 *
+	 * @param source
+	 * @param tokenizer
+	 * @param threshold
+	 * @param pool
+	 * @return
+	 * @throws IOException
+	 */
+	public static Set<String> buildVocabulary(CorpusSource source, JavaTokenizer tokenizer, int threshold, ForkJoinPool pool) throws IOException{
+		return buildVocabulary(source, tokenizer, threshold, Integer.MAX_VALUE, pool);
+	}
+	
+	/**
+	 * Same as
+	 * {@link #buildVocabulary(Collection, JavaTokenizer, int, int, ForkJoinPool)}
+	 * for the entries of a source. Each worker counts the entries it is
+	 * handed into its own table.
+	 *
+	 * @param source
+	 * @param tokenizer
+	 * @param threshold
+	 * @param maxVocabularySize
+	 * @param pool
+	 * @return
+	 * @throws IOException
+	 */
+	public static Set<String> buildVocabulary(CorpusSource source, final JavaTokenizer tokenizer, int threshold, int maxVocabularySize, ForkJoinPool pool) throws IOException{
+		checkArgument(maxVocabularySize > 0);
+		final int capacity = (int) Math.min(Integer.MAX_VALUE,
+				(long) HEAVY_HITTERS_SLACK * maxVocabularySize);
+		// the table of each worker, dropped with the method
+		final ConcurrentMap<Thread, WordCounts> counts = new ConcurrentHashMap<Thread, WordCounts>();
+		source.forEachEntry(new CorpusSource.EntryHandler() {
+			@Override
+			public void handle(int index, CorpusSource.Entry entry) throws IOException {
+				WordCounts table = counts.get(Thread.currentThread());
+				if (table == null) {
+					table = new WordCounts();
+					counts.put(Thread.currentThread(), table);
+				}
+				final TokenCursor tokens = entry.getTokenCursor(tokenizer);
+				while (tokens.next()) {
+					table.add(tokens.getToken(), 1);
+				}
+				if (table.size() / 2 > capacity) {
+					table.reduceTo(capacity);
+				}
+			}
+		}, pool);
 		
-		for(File f: files){
-			vocabulary.addAll(tokenizer.tokenListFromFile(f));
+		final List<WordCounts> workerTables = Lists.newArrayList(counts.values());
+		if (workerTables.isEmpty()) {
+			// no entries
+			workerTables.add(new WordCounts());
+		}
+		final WordCounts[] tables = workerTables.toArray(new WordCounts[workerTables.size()]);
+		for (final WordCounts table : tables) {
+			table.reduceTo(capacity);
+		}
+		return selectVocabulary(tables, threshold, maxVocabularySize, pool);
+	}
+	
+	/**
+	 * Sum the tables of counts by shards on the pool, and keep the at most
+	 * maxVocabularySize most frequent words above the threshold.
+	 */
+	private static Set<String> selectVocabulary(final WordCounts[] tables, int threshold, int maxVocabularySize, ForkJoinPool pool) {
+		// one pass over each table sorts its slots by shard
+		final List<ForkJoinTask<int[][]>> bucketing = Lists.newArrayList();
+		for (final WordCounts table : tables) {
+			bucketing.add(pool.submit(new BucketingTask(table, tables.length)));
+		}
+		final int[][][] buckets = new int[tables.length][][];
+		for (int i = 0; i < tables.length; i++) {
+			buckets[i] = bucketing.get(i).join();
 		}
 		
-		pruneElementsFromMultiset(threshold, vocabulary);
+		final List<ForkJoinTask<WordCounts>> merging = Lists.newArrayList();
+		for (int shard = 0; shard < tables.length; shard++) {
+			merging.add(pool.submit(new ShardTask(tables, buckets, shard, threshold)));
+		}
+		// the shards have no word in common
+		final List<Entry<String>> counted = Lists.newArrayList();
+		for (final ForkJoinTask<WordCounts> task : merging) {
+			final WordCounts shard = task.join();
+			for (int slot = 0; slot < shard.slots(); slot++) {
+				if (shard.wordAt(slot) != null) {
+					counted.add(Multisets.immutableEntry(shard.wordAt(slot),
+							(int) Math.min(Integer.MAX_VALUE, shard.countAt(slot))));
+				}
+			}
+		}
+		if (counted.size() > maxVocabularySize) {
+			Collections.sort(counted, new Comparator<Entry<String>>() {
+				@Override
+				public int compare(final Entry<String> e1, final Entry<String> e2) {
+					return ComparisonChain.start()
+							.compare(e2.getCount(), e1.getCount())
+							.compare(e1.getElement(), e2.getElement()).result();
+				}
+			});
+		}
 		
-		LOGGER.info("Vocabulary built, with " + vocabulary.elementSet().size()
-				+ " words");
-
-		return vocabulary.elementSet();
+		final int size = Math.min(counted.size(), maxVocabularySize);
+		final Set<String> words = Sets.newHashSetWithExpectedSize(size);
+		for (int i = 0; i < size; i++) {
+			words.add(counted.get(i).getElement());
+		}
+		LOGGER.info("Vocabulary built, with " + words.size() + " words");
+		return words;
 	}
 	
-	public static void pruneElementsFromMultiset(int threshold, Multiset<String> vocabulary) {
-		final ArrayDeque<Entry<String>> toBeRemoved = new ArrayDeque<Entry<String>>();
+	/**
+	 * Counts the tokens of a slice of the files, reducing its table to a
+	 * heavy hitters summary of the given capacity whenever it grows to twice
+	 * as much.
+	 */
+	private static class CountingTask extends RecursiveTask<WordCounts> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final List<File> files;
+		private final int from;
+		private final int to;
+		private final JavaTokenizer tokenizer;
+		private final int capacity;
 
-		for (final Entry<String> ent : vocabulary.entrySet()) {
-			if (ent.getCount() <= threshold) {
-				toBeRemoved.add(ent);
+		CountingTask(List<File> files, int from, int to, JavaTokenizer tokenizer, int capacity) {
+			this.files = files;
+			this.from = from;
+			this.to = to;
+			this.tokenizer = tokenizer;
+			this.capacity = capacity;
+		}
+
+		@Override
+		protected WordCounts compute() {
+			final WordCounts counts = new WordCounts();
+			for (int i = from; i < to; i++) {
+				try {
+					final TokenCursor tokens = tokenizer.getTokenCursor(files.get(i));
+					while (tokens.next()) {
+						counts.add(tokens.getToken(), 1);
+					}
+				} catch (final IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				if (counts.size() / 2 > capacity) {
+					counts.reduceTo(capacity);
+				}
 			}
+			counts.reduceTo(capacity);
+			return counts;
+		}
+	}
+	
+	/**
+	 * Lists the slots of a table by shard.
+	 */
+	private static class BucketingTask extends RecursiveTask<int[][]> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final WordCounts table;
+		private final int nShards;
+
+		BucketingTask(WordCounts table, int nShards) {
+			this.table = table;
+			this.nShards = nShards;
+		}
+
+		@Override
+		protected int[][] compute() {
+			return table.slotsByShard(nShards);
+		}
+	}
+	
+	/**
+	 * Sums the counts of the words of one shard over all the tables, reading
+	 * only the slots of the shard, and keeps those above the threshold.
+	 */
+	private static class ShardTask extends RecursiveTask<WordCounts> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final WordCounts[] tables;
+		// the slots of each table, by shard
+		private final int[][][] buckets;
+		private final int shard;
+		private final int threshold;
+
+		ShardTask(WordCounts[] tables, int[][][] buckets, int shard, int threshold) {
+			this.tables = tables;
+			this.buckets = buckets;
+			this.shard = shard;
+			this.threshold = threshold;
 		}
 
-		for (Entry<String> ent : toBeRemoved) {
-			vocabulary.remove(ent.getElement(), ent.getCount());
+		@Override
+		protected WordCounts compute() {
+			final WordCounts merged = new WordCounts();
+			for (int i = 0; i < tables.length; i++) {
+				for (final int slot : buckets[i][shard]) {
+					merged.add(tables[i].wordAt(slot), tables[i].countAt(slot));
+				}
+			}
+			merged.prune(threshold);
+			return merged;
+		}
+	}
+	
+	public static void pruneElementsFromMultiset(int threshold, Multiset<String> vocabulary) {
+		final Iterator<Entry<String>> entries = vocabulary.entrySet().iterator();
+		while (entries.hasNext()) {
+			if (entries.next().getCount() <= threshold) {
+				entries.remove();
+			}
 		}
 	}
 
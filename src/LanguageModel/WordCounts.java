@@ -0,0 +1,188 @@
+package LanguageModel;
+
+import java.util.Arrays;
+
+/**
+ * Counts of words in an open addressing table of parallel arrays, so that
+ * counting a word does not allocate once the word is in the table.
+ *
+ * With {@link #reduceTo} the table doubles as a Misra-Gries heavy hitters
+ * summary: it keeps at most a given number of words, each with a count that
+ * is at most the true count and at least the true count minus the number of
+ * words counted divided by the capacity plus one. Such summaries stay valid
+ * when they are added together and reduced again.
+ */
+class WordCounts {
+
+	private static final int MIN_CAPACITY = 16;
+
+	private String[] words;
+	private long[] counts;
+	private int size = 0;
+
+	WordCounts() {
+		words = new String[MIN_CAPACITY];
+		counts = new long[MIN_CAPACITY];
+	}
+
+	/**
+	 * Add to the count of the word.
+	 *
+	 * @param word
+	 * @param count
+	 */
+	void add(final String word, final long count) {
+		final int mask = words.length - 1;
+		int slot = hash(word) & mask;
+		while (words[slot] != null) {
+			if (words[slot].equals(word)) {
+				counts[slot] += count;
+				return;
+			}
+			slot = (slot + 1) & mask;
+		}
+		words[slot] = word;
+		counts[slot] = count;
+		size++;
+		// at most half full
+		if (2 * size > words.length) {
+			rehash(2 * words.length);
+		}
+	}
+
+	/**
+	 * Add all the counts of the other table to this one.
+	 *
+	 * @param other
+	 */
+	void addAll(final WordCounts other) {
+		for (int i = 0; i < other.words.length; i++) {
+			if (other.words[i] != null) {
+				add(other.words[i], other.counts[i]);
+			}
+		}
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * The slots of the table, some of them empty.
+	 */
+	int slots() {
+		return words.length;
+	}
+
+	// null for an empty slot
+	String wordAt(final int slot) {
+		return words[slot];
+	}
+
+	long countAt(final int slot) {
+		return counts[slot];
+	}
+
+	/**
+	 * Return the occupied slots of the table, in one list per shard of the
+	 * words, so that each shard can be read without going over the others.
+	 *
+	 * @param nShards
+	 * @return
+	 */
+	int[][] slotsByShard(final int nShards) {
+		final int[] shards = new int[words.length];
+		final int[] sizes = new int[nShards];
+		for (int i = 0; i < words.length; i++) {
+			if (words[i] != null) {
+				shards[i] = Math.floorMod(hash(words[i]), nShards);
+				sizes[shards[i]]++;
+			}
+		}
+		final int[][] slots = new int[nShards][];
+		for (int shard = 0; shard < nShards; shard++) {
+			slots[shard] = new int[sizes[shard]];
+			sizes[shard] = 0;
+		}
+		for (int i = 0; i < words.length; i++) {
+			if (words[i] != null) {
+				slots[shards[i]][sizes[shards[i]]++] = i;
+			}
+		}
+		return slots;
+	}
+
+	/**
+	 * Keep only the words with a count above the threshold.
+	 *
+	 * @param threshold
+	 */
+	void prune(final long threshold) {
+		final String[] oldWords = words;
+		final long[] oldCounts = counts;
+		words = new String[oldWords.length];
+		counts = new long[oldWords.length];
+		size = 0;
+		for (int i = 0; i < oldWords.length; i++) {
+			if (oldWords[i] != null && oldCounts[i] > threshold) {
+				add(oldWords[i], oldCounts[i]);
+			}
+		}
+	}
+
+	/**
+	 * Keep at most capacity words, by subtracting the count of the word
+	 * ranked capacity + 1 from every count, as Misra-Gries does.
+	 *
+	 * @param capacity
+	 */
+	void reduceTo(final int capacity) {
+		if (size <= capacity) {
+			return;
+		}
+		final long[] sorted = new long[size];
+		int n = 0;
+		for (int i = 0; i < words.length; i++) {
+			if (words[i] != null) {
+				sorted[n++] = counts[i];
+			}
+		}
+		Arrays.sort(sorted);
+		final long decrement = sorted[size - capacity - 1];
+
+		final String[] oldWords = words;
+		final long[] oldCounts = counts;
+		words = new String[oldWords.length];
+		counts = new long[oldWords.length];
+		size = 0;
+		for (int i = 0; i < oldWords.length; i++) {
+			if (oldWords[i] != null && oldCounts[i] > decrement) {
+				add(oldWords[i], oldCounts[i] - decrement);
+			}
+		}
+	}
+
+	private void rehash(final int capacity) {
+		final String[] oldWords = words;
+		final long[] oldCounts = counts;
+		words = new String[capacity];
+		counts = new long[capacity];
+		size = 0;
+		for (int i = 0; i < oldWords.length; i++) {
+			if (oldWords[i] != null) {
+				add(oldWords[i], oldCounts[i]);
+			}
+		}
+	}
+
+	/**
+	 * The spread hash of a word, which also picks its shard.
+	 *
+	 * @param word
+	 * @return
+	 */
+	static int hash(final String word) {
+		final int h = word.hashCode();
+		return h ^ (h >>> 16);
+	}
+}
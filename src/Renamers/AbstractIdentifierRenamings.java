@@ -21,6 +21,7 @@ import com.google.common.collect.TreeMultiset;
 import com.google.common.math.DoubleMath;
 
 import LanguageModel.AbstractNGramLM;
+import LanguageModel.IncrementalDocument;
 import NGram.NGram;
 
 public abstract class AbstractIdentifierRenamings {
@@ -121,7 +122,22 @@ public abstract class AbstractIdentifierRenamings {
 	
 	public Multiset<NGram<String>> getSnippetNGrams(String snippet, String targetIdentifier) {
 		ArrayList<String> lst = checkNotNull(ngramLM).getTokenizer().tokenList(snippet.toCharArray());
-
+		return getSnippetNGrams(lst, targetIdentifier);
+	}
+	
+	/**
+	 * Same as {@link #getSnippetNGrams(String, String)} for a document kept
+	 * tokenized as it is edited, without scanning it again.
+	 *
+	 * @param document
+	 * @param targetIdentifier
+	 * @return
+	 */
+	public Multiset<NGram<String>> getSnippetNGrams(IncrementalDocument document, String targetIdentifier) {
+		return getSnippetNGrams(document.getTokens(), targetIdentifier);
+	}
+	
+	private Multiset<NGram<String>> getSnippetNGrams(ArrayList<String> lst, String targetIdentifier) {
 		SortedSet<Integer> identifierPositions = Sets.newTreeSet();
 		ArrayList<String> sentence = Lists.newArrayList();
 
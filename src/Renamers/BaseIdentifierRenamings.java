@@ -6,10 +6,8 @@ import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Scanner;
 import java.util.SortedSet;
 import java.util.logging.Logger;
 
@@ -18,6 +16,7 @@ import org.apache.commons.io.FileUtils;
 import com.google.common.collect.Sets;
 
 import LanguageModel.IdentifierNGramLM;
+import LanguageModel.LeaveOneOutModel;
 import NGram.NGram;
 import Tokenizer.JavaTokenizer;
 import Tokenizer.Token;
@@ -27,6 +26,9 @@ public class BaseIdentifierRenamings extends AbstractIdentifierRenamings {
 	
 	public static final int NGRAM_SIZE = 4;
 	
+	// probabilities cached while scoring renamings
+	public static final long PROBABILITY_CACHE_SIZE = 100000;
+	
 	JavaTokenizer tokenizer;
 	
 	private static final Logger LOGGER = Logger
@@ -43,6 +45,8 @@ public class BaseIdentifierRenamings extends AbstractIdentifierRenamings {
 		IdentifierNGramLM dict = new IdentifierNGramLM(NGRAM_SIZE, tokenizer);
 		try {
 			dict.trainModel(trainingFiles);
+			dict.freeze();
+			dict.enableProbabilityCache(PROBABILITY_CACHE_SIZE);
 			this.ngramLM = dict;
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
@@ -81,19 +85,17 @@ public class BaseIdentifierRenamings extends AbstractIdentifierRenamings {
 		Collections.sort(files);
 		PrintWriter writer = new PrintWriter("results_retrofit_4_gram.txt", "UTF-8");
 		
+		// Train once, then hold out each file in turn instead of retraining
+		JavaTokenizer tokenizer = new JavaTokenizer();
+		LeaveOneOutModel fullModel = new LeaveOneOutModel(NGRAM_SIZE, tokenizer, files);
+		BaseIdentifierRenamings lm = new BaseIdentifierRenamings(tokenizer);
+		lm.ngramLM = fullModel.getModel();
+		lm.ngramLM.enableProbabilityCache(PROBABILITY_CACHE_SIZE);
+		
 		for(File fi: files){
-			Collection<File> trainingFiles = new HashSet<File>();
-			for (int i = 0; i < listOfFiles.length; i++) {
-			      if (listOfFiles[i].isFile() && !fi.getName().equals(listOfFiles[i].getName())) {
-			        trainingFiles.add(listOfFiles[i]);
-			      }
-			}
 			writer.println(fi.getName());
 			System.out.println(fi.getName());
-			Scanner sc = new Scanner(System.in);
-			JavaTokenizer tokenizer = new JavaTokenizer();
-			BaseIdentifierRenamings lm = new BaseIdentifierRenamings(tokenizer);
-			lm.buildRenamingModel(trainingFiles);
+			fullModel.holdOut(fi);
 			ArrayList<Token> tokens = tokenizer.getTokenListFromFile(fi);
 			double totalIdentifiers = 0.0;
 			int k_1 = 0, k_2 = 0, k_3 = 0, k_4 = 0, k_5 = 0;
@@ -125,6 +127,7 @@ public class BaseIdentifierRenamings extends AbstractIdentifierRenamings {
 			writer.println("The chance of finding the variable at the first location is: " + ((k_1+k_2+k_3)/totalIdentifiers));
 			writer.println("The chance of finding the variable at the first location is: " + ((k_1+k_2+k_3+k_4)/totalIdentifiers));
 			writer.println("The chance of finding the variable at the first location is: " + ((k_1+k_2+k_3+k_4+k_5)/totalIdentifiers));
+			fullModel.restore();
 		}
 		writer.close();
 	}
@@ -2,25 +2,47 @@ package Tokenizer;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.logging.Logger;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.filefilter.RegexFileFilter;
-import org.apache.commons.lang.exception.ExceptionUtils;
 import org.eclipse.jdt.core.compiler.ITerminalSymbols;
-import org.eclipse.jdt.core.compiler.InvalidInputException;
-import org.eclipse.jdt.internal.core.util.PublicScanner;
 
 import com.google.common.collect.Lists;
 
+import Trie.SymbolTable;
+
 public class JavaTokenizer {
 	private static final Logger LOGGER = Logger.getLogger(JavaTokenizer.class
 			.getName());
 	
-	static final String SENTENCE_END = "<SENTENCE_END/>";
-	static final String SENTENCE_START = "<SENTENCE_START>";
+	// files up to this size are read into a pooled buffer, larger ones are
+	// mapped
+	private static final int MAP_THRESHOLD = 1 << 20;
+
+	// one read buffer per tokenizing thread, as large as the largest file it
+	// read below MAP_THRESHOLD
+	private static final ThreadLocal<ByteBuffer> READ_BUFFER = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocate(1 << 16);
+		}
+	};
+	
+	public static final String SENTENCE_END = "<SENTENCE_END/>";
+	public static final String SENTENCE_START = "<SENTENCE_START>";
 	
 	public static final RegexFileFilter FileFilter = new RegexFileFilter(
 			".*\\.java$");
@@ -110,6 +132,9 @@ public class JavaTokenizer {
 		Integer.toString(ITerminalSymbols.TokenNameLBRACKET),
 		Integer.toString(ITerminalSymbols.TokenNameRBRACKET) };
 	
+	// the names of the token types, filled as they are asked for
+	private static final String[] TYPE_NAMES = new String[2048];
+	
 	private final boolean comments;
 	
 	public JavaTokenizer(){
@@ -127,7 +152,11 @@ public class JavaTokenizer {
 	public String getIdentifierType(){
 		return IDENTIFIER_ID;
 	}
-	
+
+	public boolean isTokenizingComments(){
+		return comments;
+	}
+
 	public ArrayList<String> getKeywordTypes(){
 		return (ArrayList<String>) Arrays.asList(KEYWORD_TYPE_IDs);
 	}
@@ -138,70 +167,218 @@ public class JavaTokenizer {
 		return allLiterals;
 	}
 	
-	String stripTokenIfNeeded(String token) {
+	static String stripTokenIfNeeded(String token) {
+		// most tokens have none of the characters to replace
+		boolean plain = true;
+		for (int i = 0; i < token.length() && plain; i++) {
+			final char c = token.charAt(i);
+			plain = c != '\n' && c != '\t' && c != '\r' && c != '\\';
+		}
+		if (plain) {
+			return token;
+		}
 		return token.replace('\n', ' ').replace('\t', ' ').replace('\r', ' ')
 				.replace("\n", " ").replace("\t", " ").replace("\r", " ")
 				.replace("\'\\\\\'", "\'|\'").replace("\\", "|");
 	}
 
+	/**
+	 * The name of a token type, as in {@link Token#tokenType}.
+	 *
+	 * @param type
+	 * @return
+	 */
+	public static String getTypeName(int type) {
+		if (type < 0 || type >= TYPE_NAMES.length) {
+			return Integer.toString(type);
+		}
+		String name = TYPE_NAMES[type];
+		if (name == null) {
+			name = Integer.toString(type);
+			TYPE_NAMES[type] = name;
+		}
+		return name;
+	}
+	
+	/**
+	 * Return a cursor over the tokens of the code.
+	 *
+	 * @param code
+	 * @return
+	 */
+	public TokenCursor getTokenCursor(char[] code) {
+		return new TokenCursor(code, comments);
+	}
+	
+	/**
+	 * Return a cursor over the tokens of the code from an offset where
+	 * scanning the whole code starts a token, e.g. to scan again after an
+	 * edit. Unless the offset is 0, there is no SENTENCE_START.
+	 *
+	 * @param code
+	 * @param from
+	 * @return
+	 */
+	public TokenCursor getTokenCursor(char[] code, int from) {
+		return new TokenCursor(code, comments, from);
+	}
+	
+	/**
+	 * Return a cursor over the tokens of the file. The file is read into a
+	 * buffer kept by the thread, or mapped if it is larger than 1MB, and
+	 * decoded from there in the platform's encoding as
+	 * {@link FileUtils#readFileToString(File)} does.
+	 *
+	 * @param codeFile
+	 * @return
+	 * @throws IOException
+	 */
+	public TokenCursor getTokenCursor(File codeFile) throws IOException {
+		return getTokenCursor(readFile(codeFile));
+	}
+	
+	/**
+	 * Return a cursor over the tokens of the bytes of a source, e.g. an
+	 * entry of an archive, decoded in the platform's encoding as for files.
+	 *
+	 * @param code
+	 * @return
+	 * @throws IOException
+	 */
+	public TokenCursor getTokenCursor(ByteBuffer code) throws IOException {
+		return getTokenCursor(decode(code));
+	}
+	
+	private static char[] readFile(File codeFile) throws IOException {
+		final FileChannel channel = FileChannel.open(codeFile.toPath(),
+				StandardOpenOption.READ);
+		try {
+			final long size = channel.size();
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException(codeFile + " is too large to tokenize");
+			}
+			if (size > MAP_THRESHOLD) {
+				return decode(channel.map(MapMode.READ_ONLY, 0, size));
+			}
+			ByteBuffer buffer = READ_BUFFER.get();
+			if (buffer.capacity() < size) {
+				buffer = ByteBuffer.allocate(Math.min(
+						Integer.highestOneBit((int) size) << 1, MAP_THRESHOLD));
+				READ_BUFFER.set(buffer);
+			}
+			buffer.clear().limit((int) size);
+			while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+				// until the whole file is read
+			}
+			buffer.flip();
+			return decode(buffer);
+		} finally {
+			channel.close();
+		}
+	}
+	
+	// the JDT scanner finds the end of some tokens by the end of the array,
+	// so the array is exactly as long as the code
+	private static char[] decode(ByteBuffer bytes) throws IOException {
+		final CharsetDecoder decoder = Charset.defaultCharset()
+				.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		final CharBuffer chars = CharBuffer.allocate((int) Math.ceil(bytes
+				.remaining() * (double) decoder.maxCharsPerByte()));
+		CoderResult result = decoder.decode(bytes, chars, true);
+		if (result.isUnderflow()) {
+			result = decoder.flush(chars);
+		}
+		if (!result.isUnderflow()) {
+			result.throwException();
+		}
+		final char[] code = chars.array();
+		// ASCII sources decode to exactly as many chars as bytes
+		return chars.position() == code.length ? code : Arrays.copyOf(code,
+				chars.position());
+	}
+	
+	/**
+	 * Tokenize the code straight into the ids of the symbol table, looking
+	 * the tokens up without building Strings for them where possible.
+	 *
+	 * @param code
+	 * @param symbols
+	 * @param unknownId
+	 *            the id of the tokens that are not in the table
+	 * @return
+	 */
+	public TokenIds getTokenIds(char[] code, SymbolTable<String> symbols,
+			int unknownId) {
+		return getTokenIds(getTokenCursor(code), symbols, unknownId);
+	}
+	
+	/**
+	 * Same as {@link #getTokenIds(char[], SymbolTable, int)} for a file.
+	 *
+	 * @param codeFile
+	 * @param symbols
+	 * @param unknownId
+	 * @return
+	 * @throws IOException
+	 */
+	public TokenIds getTokenIds(File codeFile, SymbolTable<String> symbols,
+			int unknownId) throws IOException {
+		return getTokenIds(getTokenCursor(codeFile), symbols, unknownId);
+	}
+	
+	private static TokenIds getTokenIds(TokenCursor cursor,
+			SymbolTable<String> symbols, int unknownId) {
+		int[] ids = new int[64];
+		final BitSet identifiers = new BitSet();
+		int nTokens = 0;
+		while (cursor.next()) {
+			final int id = cursor.getSymbolId(symbols);
+			if (nTokens == ids.length) {
+				ids = Arrays.copyOf(ids, 2 * ids.length);
+			}
+			ids[nTokens] = id == SymbolTable.NO_SYMBOL ? unknownId : id;
+			if (cursor.isIdentifier()) {
+				identifiers.set(nTokens);
+			}
+			nTokens++;
+		}
+		return new TokenIds(Arrays.copyOf(ids, nTokens), identifiers);
+	}
+	
 	public ArrayList<Token> getTokenList(char[] code){
-		PublicScanner sc = new PublicScanner();
-		sc.tokenizeComments = comments;
+		return getTokenList(getTokenCursor(code));
+	}
+	
+	private static ArrayList<Token> getTokenList(TokenCursor cursor) {
 		ArrayList<Token> tokens = Lists.newArrayList();
-		tokens.add(new Token(SENTENCE_START, SENTENCE_START));
-		sc.setSource(code);
-		do {
-			try {
-				int token = sc.getNextToken();
-				if (token == ITerminalSymbols.TokenNameEOF) {
-					break;
-				}
-
-				tokens.add(new Token(stripTokenIfNeeded(sc.getCurrentTokenString()), Integer.toString(token)));
-			} catch (final InvalidInputException e) {
-				LOGGER.warning(ExceptionUtils.getFullStackTrace(e));
-			} catch (final StringIndexOutOfBoundsException e) {
-				LOGGER.warning(ExceptionUtils.getFullStackTrace(e));
-			}
-		} while (!sc.atEnd());
-		tokens.add(new Token(SENTENCE_END, SENTENCE_END));
+		while (cursor.next()) {
+			tokens.add(cursor.toToken());
+		}
 		return tokens;
 	}
 	
 	public ArrayList<Token> getTokenListFromFile(File codeFile)
 			throws IOException {
-		return getTokenList(FileUtils.readFileToString(codeFile)
-				.toCharArray());
+		return getTokenList(getTokenCursor(codeFile));
 	}
 	
 	public ArrayList<String> tokenList(char[] code){
-		PublicScanner sc = new PublicScanner();
-		sc.tokenizeComments = comments;
+		return tokenList(getTokenCursor(code));
+	}
+	
+	private static ArrayList<String> tokenList(TokenCursor cursor) {
 		ArrayList<String> tokens = Lists.newArrayList();
-		tokens.add(SENTENCE_START);
-		sc.setSource(code);
-		do {
-			try {
-				int token = sc.getNextToken();
-				if (token == ITerminalSymbols.TokenNameEOF) {
-					break;
-				}
-
-				tokens.add(stripTokenIfNeeded(sc.getCurrentTokenString()));
-			} catch (final InvalidInputException e) {
-				LOGGER.warning(ExceptionUtils.getFullStackTrace(e));
-			} catch (final StringIndexOutOfBoundsException e) {
-				LOGGER.warning(ExceptionUtils.getFullStackTrace(e));
-			}
-		} while (!sc.atEnd());
-		tokens.add(SENTENCE_END);
+		while (cursor.next()) {
+			tokens.add(cursor.getToken());
+		}
 		return tokens;
 	}
 	
 	public ArrayList<String> tokenListFromFile(File codeFile)
 			throws IOException {
-		return tokenList(FileUtils.readFileToString(codeFile)
-				.toCharArray());
+		return tokenList(getTokenCursor(codeFile));
 	}
 	
 }
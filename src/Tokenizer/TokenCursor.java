@@ -0,0 +1,246 @@
+package Tokenizer;
+
+import java.io.Closeable;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+import org.apache.commons.lang.exception.ExceptionUtils;
+import org.eclipse.jdt.core.compiler.ITerminalSymbols;
+import org.eclipse.jdt.core.compiler.InvalidInputException;
+import org.eclipse.jdt.internal.core.util.PublicScanner;
+
+import Trie.SymbolTable;
+
+/**
+ * Walks the tokens of a source one at a time, without building a token list:
+ * the same tokens as {@link JavaTokenizer#getTokenList}, starting with
+ * {@link JavaTokenizer#SENTENCE_START} and ending with
+ * {@link JavaTokenizer#SENTENCE_END}. The token type is the int of
+ * {@link ITerminalSymbols}, or {@link #SENTENCE_START_TYPE} and
+ * {@link #SENTENCE_END_TYPE} for the two markers.
+ *
+ * Scanners are reused: each thread keeps one, which a cursor holds until it
+ * is exhausted or closed. A cursor is not thread safe.
+ */
+public class TokenCursor implements Closeable {
+	private static final Logger LOGGER = Logger.getLogger(TokenCursor.class
+			.getName());
+
+	public static final int SENTENCE_START_TYPE = -1;
+	public static final int SENTENCE_END_TYPE = -2;
+
+	// the idle scanner of each thread, null while a cursor holds it
+	private static final ThreadLocal<PublicScanner> SCANNERS = new ThreadLocal<PublicScanner>();
+
+	private static final int BEFORE_START = 0;
+	private static final int IN_SOURCE = 1;
+	private static final int AT_END = 2;
+	private static final int DONE = 3;
+
+	private PublicScanner scanner;
+	private int state = BEFORE_START;
+	// whether the scanner was asked for a token yet
+	private boolean scanned = false;
+	private int type;
+
+	// the current token with its white space replaced, when it has some
+	private char[] normalized;
+
+	TokenCursor(final char[] source, final boolean comments) {
+		this(source, comments, 0);
+	}
+
+	// from 0 the cursor starts with SENTENCE_START, from anywhere else it
+	// starts with the token there
+	TokenCursor(final char[] source, final boolean comments, final int from) {
+		scanner = SCANNERS.get();
+		if (scanner != null) {
+			SCANNERS.set(null);
+		} else {
+			scanner = new PublicScanner();
+		}
+		scanner.tokenizeComments = comments;
+		scanner.setSource(source);
+		if (from > 0) {
+			scanner.resetTo(from, scanner.getSource().length - 1);
+			state = IN_SOURCE;
+		}
+	}
+
+	/**
+	 * Move to the next token.
+	 *
+	 * @return false if there are no more tokens
+	 */
+	public boolean next() {
+		switch (state) {
+		case BEFORE_START:
+			state = IN_SOURCE;
+			type = SENTENCE_START_TYPE;
+			return true;
+		case IN_SOURCE:
+			while (!scanned || !scanner.atEnd()) {
+				scanned = true;
+				try {
+					final int token = scanner.getNextToken();
+					if (token == ITerminalSymbols.TokenNameEOF) {
+						break;
+					}
+					type = token;
+					return true;
+				} catch (final InvalidInputException e) {
+					LOGGER.warning(ExceptionUtils.getFullStackTrace(e));
+				} catch (final StringIndexOutOfBoundsException e) {
+					LOGGER.warning(ExceptionUtils.getFullStackTrace(e));
+				}
+			}
+			state = AT_END;
+			type = SENTENCE_END_TYPE;
+			return true;
+		default:
+			close();
+			return false;
+		}
+	}
+
+	/**
+	 * The type of the current token.
+	 */
+	public int getType() {
+		return type;
+	}
+
+	/**
+	 * The offset of the current token in the source; 0 for SENTENCE_START
+	 * and the length of the source for SENTENCE_END.
+	 */
+	public int getStart() {
+		switch (type) {
+		case SENTENCE_START_TYPE:
+			return 0;
+		case SENTENCE_END_TYPE:
+			return scanner.getSource().length;
+		default:
+			return scanner.getCurrentTokenStartPosition();
+		}
+	}
+
+	/**
+	 * The offset just after the current token.
+	 */
+	public int getEnd() {
+		switch (type) {
+		case SENTENCE_START_TYPE:
+			return 0;
+		case SENTENCE_END_TYPE:
+			return scanner.getSource().length;
+		default:
+			return scanner.getCurrentTokenEndPosition() + 1;
+		}
+	}
+
+	public boolean isIdentifier() {
+		return type == ITerminalSymbols.TokenNameIdentifier;
+	}
+
+	/**
+	 * The current token, as in the token lists.
+	 */
+	public String getToken() {
+		switch (type) {
+		case SENTENCE_START_TYPE:
+			return JavaTokenizer.SENTENCE_START;
+		case SENTENCE_END_TYPE:
+			return JavaTokenizer.SENTENCE_END;
+		default:
+			return JavaTokenizer.stripTokenIfNeeded(scanner
+					.getCurrentTokenString());
+		}
+	}
+
+	/**
+	 * The id of the current token in the symbol table, or
+	 * {@link SymbolTable#NO_SYMBOL}. The token is looked up straight from
+	 * the source chars, without building a String, unless it has a
+	 * backslash to replace.
+	 *
+	 * @param symbols
+	 * @return
+	 */
+	public int getSymbolId(final SymbolTable<String> symbols) {
+		if (type == SENTENCE_START_TYPE || type == SENTENCE_END_TYPE) {
+			return symbols.getId(getToken());
+		}
+		final char[] source = scanner.getSource();
+		final int from = scanner.getCurrentTokenStartPosition();
+		final int to = scanner.getCurrentTokenEndPosition() + 1;
+		boolean plain = true;
+		for (int i = from; i < to; i++) {
+			final char c = source[i];
+			if (c == '\\') {
+				// also where the scanner translated unicode escapes
+				return symbols.getId(getToken());
+			}
+			plain &= c != '\n' && c != '\t' && c != '\r';
+		}
+		if (plain) {
+			return symbols.getId(source, from, to);
+		}
+
+		// white space becomes a space, as in stripTokenIfNeeded
+		if (normalized == null || normalized.length < to - from) {
+			normalized = new char[Math.max(to - from, 64)];
+		}
+		for (int i = from; i < to; i++) {
+			final char c = source[i];
+			normalized[i - from] = c == '\n' || c == '\t' || c == '\r' ? ' '
+					: c;
+		}
+		return symbols.getId(normalized, 0, to - from);
+	}
+
+	/**
+	 * The current token and its type, as in
+	 * {@link JavaTokenizer#getTokenList}.
+	 */
+	public Token toToken() {
+		final String token = getToken();
+		if (type == SENTENCE_START_TYPE || type == SENTENCE_END_TYPE) {
+			return new Token(token, token);
+		}
+		return new Token(token, JavaTokenizer.getTypeName(type));
+	}
+
+	/**
+	 * The remaining tokens, for streams. The spliterator advances this
+	 * cursor.
+	 */
+	public Spliterator<Token> spliterator() {
+		return new Spliterators.AbstractSpliterator<Token>(Long.MAX_VALUE,
+				Spliterator.ORDERED | Spliterator.NONNULL) {
+			@Override
+			public boolean tryAdvance(final Consumer<? super Token> action) {
+				if (!next()) {
+					return false;
+				}
+				action.accept(toToken());
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Give the scanner back to the thread, skipping the remaining tokens.
+	 */
+	@Override
+	public void close() {
+		if (scanner != null) {
+			state = DONE;
+			scanner.setSource(null);
+			SCANNERS.set(scanner);
+			scanner = null;
+		}
+	}
+}
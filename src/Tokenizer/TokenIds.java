@@ -0,0 +1,23 @@
+package Tokenizer;
+
+import java.util.BitSet;
+
+/**
+ * The tokens of a source as symbol ids, with the positions of the
+ * identifiers, from {@link JavaTokenizer#getTokenIds}.
+ */
+public class TokenIds {
+	public final int[] symbolIds;
+
+	// set at the position of every identifier
+	public final BitSet identifiers;
+
+	public TokenIds(int[] symbolIds, BitSet identifiers) {
+		this.symbolIds = symbolIds;
+		this.identifiers = identifiers;
+	}
+
+	public int size() {
+		return symbolIds.length;
+	}
+}
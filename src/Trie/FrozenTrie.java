@@ -0,0 +1,818 @@
+package Trie;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * An immutable, array-backed copy of a {@link SymbolTrie}. Nodes are laid out
+ * in level order and are referred to by their int index, the root being 0.
+ * The children of a node are the contiguous range
+ * {@code [firstChild[node], firstChild[node + 1])}, sorted by symbol, so a
+ * child lookup is a binary search over {@code symbols} and no per-node object
+ * exists at all.
+ *
+ * The arrays are held as buffers, so that a frozen trie can either live on the
+ * heap or be mapped straight from a file written with {@link #writeTo}. The
+ * ranking of the children by count is computed once when freezing and is
+ * stored along with them.
+ */
+public class FrozenTrie implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	public static final int NO_NODE = -1;
+
+	public static final int ROOT = 0;
+
+	// below this fan-out a linear scan beats a binary search
+	private static final int LINEAR_SCAN_LIMIT = 8;
+
+	// byte order of the on-disk form
+	public static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+
+	// unk id, number of nodes and padding
+	private static final int HEADER_SIZE = 16;
+
+	private final int unkSymbolId;
+
+	private transient IntBuffer firstChild;
+	private transient IntBuffer symbols;
+	private transient LongBuffer counts;
+	private transient LongBuffer isLast;
+
+	// the children of every node by decreasing count, in the same ranges as
+	// the children themselves
+	private transient IntBuffer rankedChildren;
+
+	// built on first use by getBackoffProbability
+	private transient volatile SuffixLinks suffixLinks;
+
+	/**
+	 * The key that {@link FrozenTrie#rankChildren} orders the children of
+	 * every node by.
+	 */
+	public interface NodeKey {
+		/**
+		 * @param node
+		 * @return a non-negative key, the largest ranking first
+		 */
+		long keyOf(int node);
+	}
+
+	/**
+	 * The parent of each node, and the node of the longest proper suffix of
+	 * its path that is also a path of the trie (ROOT if there is none), as
+	 * the failure links of an Aho-Corasick automaton.
+	 */
+	private static final class SuffixLinks {
+		final int[] parents;
+		final int[] suffixes;
+
+		SuffixLinks(final int[] parents, final int[] suffixes) {
+			this.parents = parents;
+			this.suffixes = suffixes;
+		}
+	}
+
+	/**
+	 * Freeze the given trie.
+	 *
+	 * @param trie
+	 */
+	public FrozenTrie(final SymbolTrie trie) {
+		unkSymbolId = trie.getUnkSymbolId();
+
+		final int nNodes = countNodes(trie.getRoot());
+		final int[] firstChild = new int[nNodes + 1];
+		final int[] symbols = new int[nNodes];
+		final long[] counts = new long[nNodes];
+		final long[] isLast = new long[nNodes];
+
+		// Breadth first, so that siblings end up next to each other
+		final ArrayDeque<SymbolTrie.Node> queue = new ArrayDeque<SymbolTrie.Node>();
+		queue.add(trie.getRoot());
+		int current = 0;
+		int nextFree = 1;
+		while (!queue.isEmpty()) {
+			final SymbolTrie.Node node = queue.poll();
+			counts[current] = node.count;
+			isLast[current] = node.isLast;
+			firstChild[current] = nextFree;
+			for (int i = 0; i < node.size(); i++) {
+				symbols[nextFree] = node.keyAt(i);
+				nextFree++;
+				queue.add(node.childAt(i));
+			}
+			current++;
+		}
+		firstChild[nNodes] = nextFree;
+
+		this.firstChild = IntBuffer.wrap(firstChild);
+		this.symbols = IntBuffer.wrap(symbols);
+		this.counts = LongBuffer.wrap(counts);
+		this.isLast = LongBuffer.wrap(isLast);
+		rankedChildren = IntBuffer.wrap(rankChildrenByCount());
+	}
+
+	private FrozenTrie(final int unkSymbolId, final IntBuffer firstChild,
+			final IntBuffer symbols, final LongBuffer counts,
+			final LongBuffer isLast, final IntBuffer rankedChildren) {
+		this.unkSymbolId = unkSymbolId;
+		this.firstChild = firstChild;
+		this.symbols = symbols;
+		this.counts = counts;
+		this.isLast = isLast;
+		this.rankedChildren = rankedChildren;
+	}
+
+	/**
+	 * Map a frozen trie that was written with {@link #writeTo} at the given
+	 * position of the channel. The arrays are not copied; they are read
+	 * through the page cache, so several processes mapping the same file
+	 * share one copy. Each array must be smaller than 2GB.
+	 *
+	 * @param channel
+	 * @param position
+	 * @return
+	 * @throws IOException
+	 */
+	public static FrozenTrie map(final FileChannel channel, final long position)
+			throws IOException {
+		final ByteBuffer header = channel.map(MapMode.READ_ONLY, position,
+				HEADER_SIZE).order(BYTE_ORDER);
+		final int unkSymbolId = header.getInt();
+		final int nNodes = header.getInt();
+		checkArgument(nNodes > 0, "Corrupt trie header");
+
+		long offset = position + HEADER_SIZE;
+		final LongBuffer counts = channel
+				.map(MapMode.READ_ONLY, offset, 8L * nNodes).order(BYTE_ORDER)
+				.asLongBuffer();
+		offset += 8L * nNodes;
+		final LongBuffer isLast = channel
+				.map(MapMode.READ_ONLY, offset, 8L * nNodes).order(BYTE_ORDER)
+				.asLongBuffer();
+		offset += 8L * nNodes;
+		final IntBuffer firstChild = channel
+				.map(MapMode.READ_ONLY, offset, 4L * (nNodes + 1))
+				.order(BYTE_ORDER).asIntBuffer();
+		offset += 4L * (nNodes + 1);
+		final IntBuffer symbols = channel
+				.map(MapMode.READ_ONLY, offset, 4L * nNodes).order(BYTE_ORDER)
+				.asIntBuffer();
+		offset += 4L * nNodes;
+		final IntBuffer rankedChildren = channel
+				.map(MapMode.READ_ONLY, offset, 4L * nNodes).order(BYTE_ORDER)
+				.asIntBuffer();
+
+		return new FrozenTrie(unkSymbolId, firstChild, symbols, counts,
+				isLast, rankedChildren);
+	}
+
+	/**
+	 * The number of bytes {@link #writeTo} writes for a trie of this size.
+	 */
+	public long byteSize() {
+		final long nNodes = size();
+		return HEADER_SIZE + 16L * nNodes + 4L * (nNodes + 1) + 8L * nNodes;
+	}
+
+	/**
+	 * Write the trie in the layout expected by {@link #map}.
+	 *
+	 * @param channel
+	 * @throws IOException
+	 */
+	public void writeTo(final WritableByteChannel channel) throws IOException {
+		final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(
+				BYTE_ORDER);
+		header.putInt(unkSymbolId).putInt(size()).putLong(0);
+		header.flip();
+		writeFully(channel, header);
+
+		final ByteBuffer chunk = ByteBuffer.allocate(1 << 16).order(BYTE_ORDER);
+		writeLongs(channel, counts, chunk);
+		writeLongs(channel, isLast, chunk);
+		writeInts(channel, firstChild, chunk);
+		writeInts(channel, symbols, chunk);
+		writeInts(channel, rankedChildren, chunk);
+	}
+
+	private static void writeFully(final WritableByteChannel channel,
+			final ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	private static void writeInts(final WritableByteChannel channel,
+			final IntBuffer values, final ByteBuffer chunk) throws IOException {
+		final int length = values.limit();
+		for (int i = 0; i < length; i++) {
+			if (chunk.remaining() < 4) {
+				chunk.flip();
+				writeFully(channel, chunk);
+				chunk.clear();
+			}
+			chunk.putInt(values.get(i));
+		}
+		chunk.flip();
+		writeFully(channel, chunk);
+		chunk.clear();
+	}
+
+	private static void writeLongs(final WritableByteChannel channel,
+			final LongBuffer values, final ByteBuffer chunk) throws IOException {
+		final int length = values.limit();
+		for (int i = 0; i < length; i++) {
+			if (chunk.remaining() < 8) {
+				chunk.flip();
+				writeFully(channel, chunk);
+				chunk.clear();
+			}
+			chunk.putLong(values.get(i));
+		}
+		chunk.flip();
+		writeFully(channel, chunk);
+		chunk.clear();
+	}
+
+	private void writeObject(final ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		out.writeObject(toIntArray(firstChild));
+		out.writeObject(toIntArray(symbols));
+		out.writeObject(toLongArray(counts));
+		out.writeObject(toLongArray(isLast));
+	}
+
+	private void readObject(final ObjectInputStream in) throws IOException,
+			ClassNotFoundException {
+		in.defaultReadObject();
+		firstChild = IntBuffer.wrap((int[]) in.readObject());
+		symbols = IntBuffer.wrap((int[]) in.readObject());
+		counts = LongBuffer.wrap((long[]) in.readObject());
+		isLast = LongBuffer.wrap((long[]) in.readObject());
+		rankedChildren = IntBuffer.wrap(rankChildrenByCount());
+	}
+
+	private static int[] toIntArray(final IntBuffer buffer) {
+		final int[] array = new int[buffer.limit()];
+		for (int i = 0; i < array.length; i++) {
+			array[i] = buffer.get(i);
+		}
+		return array;
+	}
+
+	private static long[] toLongArray(final LongBuffer buffer) {
+		final long[] array = new long[buffer.limit()];
+		for (int i = 0; i < array.length; i++) {
+			array[i] = buffer.get(i);
+		}
+		return array;
+	}
+
+	private static int countNodes(final SymbolTrie.Node root) {
+		int nNodes = 0;
+		final ArrayDeque<SymbolTrie.Node> stack = new ArrayDeque<SymbolTrie.Node>();
+		stack.push(root);
+		while (!stack.isEmpty()) {
+			final SymbolTrie.Node node = stack.pop();
+			nNodes++;
+			for (int i = 0; i < node.size(); i++) {
+				stack.push(node.childAt(i));
+			}
+		}
+		return nNodes;
+	}
+
+	public int childAt(final int node, final int index) {
+		checkArgument(index < getChildCount(node));
+		return firstChild.get(node) + index;
+	}
+
+	/**
+	 * Return the child of the node with the given rank by count, the most
+	 * frequent child having rank 0. Ties are broken by symbol.
+	 *
+	 * @param node
+	 * @param rank
+	 * @return
+	 */
+	public int getRankedChild(final int node, final int rank) {
+		checkArgument(rank < getChildCount(node));
+		return rankedChildren.get(firstChild.get(node) + rank);
+	}
+
+	private int[] rankChildrenByCount() {
+		return rankChildren(new NodeKey() {
+			@Override
+			public long keyOf(final int node) {
+				return counts.get(node);
+			}
+		});
+	}
+
+	/**
+	 * Rank the children of every node by decreasing key, ties broken by
+	 * symbol. The ranked children of a node are in the same range of the
+	 * returned array as the children themselves.
+	 *
+	 * Each child is packed with its key into a long, the key in the high bits
+	 * and the offset of the child in the low ones, so a fan-out is sorted
+	 * without boxing. Keys that are too far apart to fit are replaced by their
+	 * rank among the distinct keys of the fan-out first.
+	 *
+	 * @param key
+	 * @return
+	 */
+	public int[] rankChildren(final NodeKey key) {
+		final int nNodes = size();
+		final int[] ranked = new int[nNodes];
+		int maxChildren = 0;
+		for (int node = 0; node < nNodes; node++) {
+			maxChildren = Math.max(maxChildren, getChildCount(node));
+		}
+		final long[] packed = new long[maxChildren];
+		final long[] keys = new long[maxChildren];
+
+		for (int node = 0; node < nNodes; node++) {
+			final int nChildren = getChildCount(node);
+			if (nChildren == 0) {
+				continue;
+			}
+			final int first = firstChild.get(node);
+			if (nChildren == 1) {
+				ranked[first] = first;
+				continue;
+			}
+			final int bits = 32 - Integer.numberOfLeadingZeros(nChildren - 1);
+			long maxKey = 0;
+			for (int i = 0; i < nChildren; i++) {
+				keys[i] = key.keyOf(first + i);
+				checkArgument(keys[i] >= 0, "Negative key");
+				maxKey = Math.max(maxKey, keys[i]);
+			}
+
+			if (maxKey >= 1L << (63 - bits)) {
+				// rank the keys among the distinct ones, which always fits
+				System.arraycopy(keys, 0, packed, 0, nChildren);
+				Arrays.sort(packed, 0, nChildren);
+				int nDistinct = 0;
+				for (int i = 0; i < nChildren; i++) {
+					if (nDistinct == 0 || packed[nDistinct - 1] != packed[i]) {
+						packed[nDistinct++] = packed[i];
+					}
+				}
+				for (int i = 0; i < nChildren; i++) {
+					keys[i] = Arrays.binarySearch(packed, 0, nDistinct, keys[i]);
+				}
+				maxKey = nDistinct - 1;
+			}
+
+			for (int i = 0; i < nChildren; i++) {
+				packed[i] = (maxKey - keys[i]) << bits | i;
+			}
+			Arrays.sort(packed, 0, nChildren);
+			final long mask = (1L << bits) - 1;
+			for (int i = 0; i < nChildren; i++) {
+				ranked[first + i] = first + (int) (packed[i] & mask);
+			}
+		}
+		return ranked;
+	}
+
+	/**
+	 * Return a trie of every path of this one, reversed, as
+	 * {@link SymbolTrie#add} would build it from each reversed path: the
+	 * count of a node is the number of paths that end with its reversed path,
+	 * and isLast the number of paths that are exactly it.
+	 *
+	 * Level d of the reversed trie holds the distinct suffixes of length d.
+	 * Each path long enough is keyed by its node on level d - 1 and the symbol
+	 * before that suffix, packed in a long, and the sorted distinct keys are
+	 * level d in level order. Building it thus sorts at most size() longs per
+	 * level and allocates nothing per node.
+	 *
+	 * @return
+	 */
+	public FrozenTrie reversed() {
+		final int nNodes = size();
+		final int[] parents = new int[nNodes];
+		for (int node = 0; node < nNodes; node++) {
+			for (int child = firstChild.get(node); child < firstChild
+					.get(node + 1); child++) {
+				parents[child] = node;
+			}
+		}
+
+		// the paths still longer than the current level, by their forward
+		// node, with their reversed node on the level and the forward node
+		// of the symbol before it
+		int nActive = nNodes - 1;
+		final int[] active = new int[nActive];
+		final int[] reversedNodes = new int[nNodes];
+		final int[] ancestors = new int[nNodes];
+		for (int i = 0; i < nActive; i++) {
+			active[i] = i + 1;
+			ancestors[i + 1] = i + 1;
+		}
+		final long[] keys = new long[nActive];
+
+		int[] newFirstChild = new int[nNodes + 1];
+		int[] newSymbols = new int[nNodes];
+		long[] newCounts = new long[nNodes];
+		long[] newIsLast = new long[nNodes];
+		newCounts[ROOT] = nNodes - 1;
+		int levelStart = ROOT;
+		int levelEnd = 1;
+		while (nActive > 0) {
+			for (int i = 0; i < nActive; i++) {
+				final int node = active[i];
+				keys[i] = (long) reversedNodes[node] << 32
+						| symbols.get(ancestors[node]);
+			}
+			Arrays.sort(keys, 0, nActive);
+			int nDistinct = 0;
+			for (int i = 0; i < nActive; i++) {
+				if (nDistinct == 0 || keys[nDistinct - 1] != keys[i]) {
+					keys[nDistinct++] = keys[i];
+				}
+			}
+
+			final int newEnd = levelEnd + nDistinct;
+			if (newEnd + 1 > newSymbols.length) {
+				final int length = Math.max(newEnd + 1,
+						newSymbols.length + newSymbols.length / 2);
+				newFirstChild = Arrays.copyOf(newFirstChild, length + 1);
+				newSymbols = Arrays.copyOf(newSymbols, length);
+				newCounts = Arrays.copyOf(newCounts, length);
+				newIsLast = Arrays.copyOf(newIsLast, length);
+			}
+			int next = 0;
+			for (int parent = levelStart; parent < levelEnd; parent++) {
+				newFirstChild[parent] = levelEnd + next;
+				while (next < nDistinct && (int) (keys[next] >>> 32) == parent) {
+					newSymbols[levelEnd + next] = (int) keys[next];
+					next++;
+				}
+			}
+			newFirstChild[levelEnd] = newEnd;
+
+			int nStillActive = 0;
+			for (int i = 0; i < nActive; i++) {
+				final int node = active[i];
+				final int parent = reversedNodes[node];
+				final int reversedNode = Arrays.binarySearch(newSymbols,
+						newFirstChild[parent], newFirstChild[parent + 1],
+						symbols.get(ancestors[node]));
+				newCounts[reversedNode]++;
+				final int ancestor = parents[ancestors[node]];
+				if (ancestor == ROOT) {
+					newIsLast[reversedNode]++;
+				} else {
+					reversedNodes[node] = reversedNode;
+					ancestors[node] = ancestor;
+					active[nStillActive++] = node;
+				}
+			}
+			nActive = nStillActive;
+			levelStart = levelEnd;
+			levelEnd = newEnd;
+		}
+		for (int node = levelStart; node <= levelEnd; node++) {
+			newFirstChild[node] = levelEnd;
+		}
+
+		final FrozenTrie reversed = new FrozenTrie(unkSymbolId,
+				IntBuffer.wrap(Arrays.copyOf(newFirstChild, levelEnd + 1)),
+				IntBuffer.wrap(Arrays.copyOf(newSymbols, levelEnd)),
+				LongBuffer.wrap(Arrays.copyOf(newCounts, levelEnd)),
+				LongBuffer.wrap(Arrays.copyOf(newIsLast, levelEnd)), null);
+		reversed.rankedChildren = IntBuffer.wrap(reversed
+				.rankChildrenByCount());
+		return reversed;
+	}
+
+	// Counts the number of distinct nodes with 'prefix' as prefix
+	public long countDistinctStartingWith(final int[] prefix,
+			final boolean useUNKs) {
+		checkArgument(prefix.length > 0);
+
+		final int node = getTrieNodeForInput(prefix, useUNKs);
+		if (node == NO_NODE) {
+			return 0;
+		}
+
+		final int nChildren = getChildCount(node);
+		if (!useUNKs && getChild(node, unkSymbolId) != NO_NODE) {
+			return nChildren - 1;
+		}
+		return nChildren;
+	}
+
+	/**
+	 * Return the child of the node with the given symbol, or NO_NODE.
+	 *
+	 * @param node
+	 * @param key
+	 * @return
+	 */
+	public int getChild(final int node, final int key) {
+		if (key == SymbolTrie.NO_SYMBOL) {
+			return NO_NODE;
+		}
+
+		int low = firstChild.get(node);
+		int high = firstChild.get(node + 1) - 1;
+		if (high - low < LINEAR_SCAN_LIMIT) {
+			for (int i = low; i <= high; i++) {
+				final int symbol = symbols.get(i);
+				if (symbol == key) {
+					return i;
+				} else if (symbol > key) {
+					break;
+				}
+			}
+			return NO_NODE;
+		}
+		while (low <= high) {
+			final int mid = (low + high) >>> 1;
+			final int midSymbol = symbols.get(mid);
+			if (midSymbol < key) {
+				low = mid + 1;
+			} else if (midSymbol > key) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return NO_NODE;
+	}
+
+	public int getChildCount(final int node) {
+		return firstChild.get(node + 1) - firstChild.get(node);
+	}
+
+	// counts nodes in sub-trie of given ngramSymbols
+	public long getCount(final int[] ngramSymbols, final boolean useUNKs,
+			final boolean useTerminals) {
+		return getCount(ngramSymbols, 0, ngramSymbols.length, useUNKs,
+				useTerminals);
+	}
+
+	/**
+	 * Same as {@link #getCount(int[], boolean, boolean)} for the symbols
+	 * [from, to).
+	 */
+	public long getCount(final int[] symbols, final int from, final int to,
+			final boolean useUNKs, final boolean useTerminals) {
+		final int current = getTrieNodeForInput(symbols, from, to, useUNKs,
+				ROOT);
+		if (current == NO_NODE) {
+			return 0;
+		}
+
+		long totalCount = counts.get(current);
+		if (!useTerminals) {
+			totalCount -= isLast.get(current);
+		}
+		if (!useUNKs) {
+			final int unkUnit = getChild(current, unkSymbolId);
+			if (unkUnit != NO_NODE) {
+				totalCount -= counts.get(unkUnit);
+			}
+		}
+
+		checkArgument(totalCount >= 0);
+		return totalCount;
+	}
+
+	/**
+	 * Return the maximum likelihood probability of the last symbol of [from,
+	 * to) given the others, backing off to the longest suffix that was seen
+	 * and multiplying by the backoff weight once per dropped symbol. Unigrams
+	 * of unknown symbols are counted as UNK; the n-gram and context counts of
+	 * longer orders leave out UNK continuations, as in
+	 * {@link #getCount(int[], int, int, boolean, boolean)}.
+	 *
+	 * Instead of walking the trie twice per order, the longest seen suffix is
+	 * found in a single left-to-right pass that follows suffix links, and the
+	 * context of an order is the parent of its node.
+	 *
+	 * @param symbols
+	 * @param from
+	 * @param to
+	 * @param backoffWeight
+	 * @return
+	 * @throws IllegalArgumentException
+	 *             if the last symbol is unknown and there is no UNK
+	 */
+	public double getBackoffProbability(final int[] symbols, final int from,
+			final int to, final double backoffWeight) {
+		checkArgument(from < to);
+		final SuffixLinks links = getSuffixLinks();
+
+		int node = ROOT;
+		for (int i = from; i < to; i++) {
+			int next = getChild(node, symbols[i]);
+			while (next == NO_NODE && node != ROOT) {
+				node = links.suffixes[node];
+				next = getChild(node, symbols[i]);
+			}
+			node = next == NO_NODE ? ROOT : next;
+		}
+
+		int order = 0;
+		for (int n = node; n != ROOT; n = links.parents[n]) {
+			order++;
+		}
+
+		// the longest seen suffixes whose count is only UNK continuations are
+		// skipped
+		while (order > 1 && countWithoutUnks(node, true) == 0) {
+			node = links.suffixes[node];
+			order = 0;
+			for (int n = node; n != ROOT; n = links.parents[n]) {
+				order++;
+			}
+		}
+
+		final long thisNgramCount;
+		final long productionCount;
+		if (order > 1) {
+			thisNgramCount = countWithoutUnks(node, true);
+			productionCount = countWithoutUnks(links.parents[node], false);
+		} else {
+			if (order == 0) {
+				node = getChild(ROOT, unkSymbolId);
+				checkArgument(node != NO_NODE);
+			}
+			thisNgramCount = counts.get(node);
+			checkArgument(thisNgramCount > 0);
+			productionCount = counts.get(ROOT) - isLast.get(ROOT);
+		}
+		checkArgument(productionCount >= thisNgramCount);
+
+		double probability = ((double) thisNgramCount)
+				/ ((double) productionCount);
+		checkArgument(!Double.isInfinite(probability));
+		for (int dropped = to - from - Math.max(order, 1); dropped > 0; dropped--) {
+			probability = backoffWeight * probability;
+		}
+		return probability;
+	}
+
+	private long countWithoutUnks(final int node, final boolean useTerminals) {
+		long totalCount = counts.get(node);
+		if (!useTerminals) {
+			totalCount -= isLast.get(node);
+		}
+		final int unkUnit = getChild(node, unkSymbolId);
+		if (unkUnit != NO_NODE) {
+			totalCount -= counts.get(unkUnit);
+		}
+		checkArgument(totalCount >= 0);
+		return totalCount;
+	}
+
+	private SuffixLinks getSuffixLinks() {
+		SuffixLinks links = suffixLinks;
+		if (links == null) {
+			synchronized (this) {
+				links = suffixLinks;
+				if (links == null) {
+					links = buildSuffixLinks();
+					suffixLinks = links;
+				}
+			}
+		}
+		return links;
+	}
+
+	// Nodes are in level order, so the suffix of a node's path is always
+	// linked before the node itself.
+	private SuffixLinks buildSuffixLinks() {
+		final int nNodes = size();
+		final int[] parents = new int[nNodes];
+		final int[] suffixes = new int[nNodes];
+		parents[ROOT] = NO_NODE;
+		suffixes[ROOT] = ROOT;
+		for (int node = 0; node < nNodes; node++) {
+			final int nChildren = getChildCount(node);
+			for (int i = 0; i < nChildren; i++) {
+				final int child = childAt(node, i);
+				parents[child] = node;
+				if (node == ROOT) {
+					suffixes[child] = ROOT;
+					continue;
+				}
+				final int symbol = getSymbol(child);
+				int suffix = suffixes[node];
+				int next = getChild(suffix, symbol);
+				while (next == NO_NODE && suffix != ROOT) {
+					suffix = suffixes[suffix];
+					next = getChild(suffix, symbol);
+				}
+				suffixes[child] = next == NO_NODE ? ROOT : next;
+			}
+		}
+		return new SuffixLinks(parents, suffixes);
+	}
+
+	public long getNodeCount(final int node) {
+		return counts.get(node);
+	}
+
+	public long getNodeIsLast(final int node) {
+		return isLast.get(node);
+	}
+
+	/**
+	 * Return the symbol on the edge leading to the given node.
+	 *
+	 * @param node
+	 * @return
+	 */
+	public int getSymbol(final int node) {
+		checkArgument(node != ROOT);
+		return symbols.get(node);
+	}
+
+	public int getTrieNodeForInput(final int[] ngramSymbols,
+			final boolean useUNKs) {
+		return getTrieNodeForInput(ngramSymbols, useUNKs, ROOT);
+	}
+
+	public int getTrieNodeForInput(final int[] ngramSymbols,
+			final boolean useUNKs, final int startNode) {
+		return getTrieNodeForInput(ngramSymbols, 0, ngramSymbols.length,
+				useUNKs, startNode);
+	}
+
+	public int getTrieNodeForInput(final int[] symbols, final int from,
+			final int to, final boolean useUNKs, final int startNode) {
+		int fromNode = startNode;
+
+		for (int i = from; i < to; i++) {
+			final int symbol = symbols[i];
+			int next = getChild(fromNode, symbol);
+			if (next == NO_NODE && useUNKs) {
+				next = getChild(fromNode, unkSymbolId);
+			}
+			if (next == NO_NODE) {
+				return NO_NODE;
+			}
+			fromNode = next;
+		}
+
+		return fromNode;
+	}
+
+	/**
+	 * Return the length of the longest path.
+	 */
+	public int depth() {
+		int depth = 0;
+		int levelStart = ROOT;
+		int levelEnd = 1;
+		// the children of a level are the next level
+		while (levelEnd < size()) {
+			levelStart = firstChild.get(levelStart);
+			levelEnd = firstChild.get(levelEnd);
+			depth++;
+		}
+		return depth;
+	}
+
+	public int getUnkSymbolId() {
+		return unkSymbolId;
+	}
+
+	public int size() {
+		return counts.limit();
+	}
+
+	public long sumStartingWith(final int[] prefix, final boolean useUNKs) {
+		checkArgument(prefix.length > 0);
+
+		final int unit = getTrieNodeForInput(prefix, useUNKs);
+		if (unit == NO_NODE) {
+			return 0;
+		}
+
+		return counts.get(unit) - isLast.get(unit);
+	}
+}
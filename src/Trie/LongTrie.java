@@ -1,104 +1,218 @@
 package Trie;
 
-import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
 
 import java.io.Serializable;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.locks.StampedLock;
 
 import NGram.NGram;
-import Trie.Trie.Node;
 
-import com.google.common.collect.BiMap;
-import com.google.common.collect.HashBiMap;
+import com.google.common.base.Function;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 
 
 public class LongTrie<K> implements Serializable {
 
-	private final Trie<Long> baseTrie = new Trie<Long>(null);
+	// the mutable trie, released once the trie is frozen
+	private SymbolTrie baseTrie;
 
-	private static final long serialVersionUID = -7194495381473625925L;
+	// the read-only form, null until freeze() is called
+	private FrozenTrie frozenTrie;
 
-	private final BiMap<K, Long> alphabet;
-	private long nextId;
+	private static final long serialVersionUID = -7194495381473625928L;
+
+	private final SymbolTable<K> alphabet;
 	private final K unkSymbol;
+	private final int unkSymbolId;
+
+	// guards the alphabet while adds may run concurrently, null otherwise
+	private transient StampedLock symbolLock;
+
+	// built on first use and kept up to date by sequential adds and removes,
+	// or built when freezing
+	private transient ReverseIndex reverseIndex;
+
+	// bumped by every change to the counts or the alphabet
+	private transient int modificationCount;
 
 	public LongTrie(final K unk) {
-		nextId = Long.MIN_VALUE;
-		alphabet = HashBiMap.create();
-		baseTrie.unkSymbolId = nextId++;
-		alphabet.put(unk, baseTrie.unkSymbolId);
+		alphabet = new SymbolTable<K>();
+		unkSymbolId = alphabet.add(unk);
+		baseTrie = new SymbolTrie(unkSymbolId);
 		unkSymbol = unk;
 	}
 
+	/**
+	 * Create a frozen trie over a given alphabet, e.g. one that was loaded
+	 * from disk. The alphabet must contain the UNK symbol.
+	 *
+	 * @param unk
+	 * @param symbols
+	 *            the symbol of each id, null for ids that are not in use
+	 * @param frozen
+	 */
+	public LongTrie(final K unk, final List<K> symbols, final FrozenTrie frozen) {
+		this(unk, symbols, frozen, null);
+	}
+
+	/**
+	 * Same as {@link #LongTrie(Object, List, FrozenTrie)} with the reverse
+	 * index of the trie, from {@link #getFrozenReverseIndex()}, or null to
+	 * build it on first use.
+	 *
+	 * @param unk
+	 * @param symbols
+	 * @param frozen
+	 * @param frozenReverseIndex
+	 */
+	public LongTrie(final K unk, final List<K> symbols,
+			final FrozenTrie frozen, final FrozenTrie frozenReverseIndex) {
+		unkSymbolId = frozen.getUnkSymbolId();
+		checkArgument(unk.equals(symbols.get(unkSymbolId)),
+				"UNK symbol id does not match the trie");
+		alphabet = new SymbolTable<K>();
+		for (int id = 0; id < symbols.size(); id++) {
+			if (symbols.get(id) != null) {
+				alphabet.put(symbols.get(id), id);
+			}
+		}
+		unkSymbol = unk;
+		frozenTrie = frozen;
+		baseTrie = null;
+		if (frozenReverseIndex != null) {
+			reverseIndex = new ReverseIndex(frozenReverseIndex);
+		}
+	}
+
 	// add given ngram to trie
 	public void add(NGram<K> ngram, boolean introduceVoc) {
+		checkNotFrozen();
+		modificationCount++;
+		
+		if (symbolLock != null) {
+			final int[] keys = getSymbolIdsConcurrently(ngram, introduceVoc);
+			if (!introduceVoc) {
+				replaceMissingWithUNK(keys);
+			}
+			baseTrie.addConcurrently(keys);
+			return;
+		}
 		
-		List<Long> keys = getSymbolIds(ngram, introduceVoc);
+		final int[] keys = getSymbolIds(ngram, introduceVoc);
 		
 		if (!introduceVoc) {
-			// replace with unks
-			for (int i = 0; i < keys.size(); i++) {
-				if (keys.get(i) == null) {
-					keys.set(i, baseTrie.getUnkSymbolId());
-				}
-			}
+			replaceMissingWithUNK(keys);
 		}
 		
-		baseTrie.add(keys);
+		indexNewPaths(keys, 0, keys.length, baseTrie.add(keys));
 	}
 
-	private long addSymbolId(final K element) {
-		alphabet.put(element, nextId);
-		nextId++;
-		return nextId - 1;
+	/**
+	 * Add the window [from, to) of a sentence already converted by
+	 * {@link #getSentenceSymbolIds}. Adding every window of a sentence this
+	 * way resolves each token once instead of once per n-gram containing it.
+	 *
+	 * @param sentenceIds
+	 * @param from
+	 * @param to
+	 */
+	public void add(final int[] sentenceIds, final int from, final int to) {
+		checkNotFrozen();
+		modificationCount++;
+		if (symbolLock != null) {
+			baseTrie.addConcurrently(sentenceIds, from, to);
+		} else {
+			indexNewPaths(sentenceIds, from, to,
+					baseTrie.add(sentenceIds, from, to));
+		}
+	}
+
+	/**
+	 * Add the n-gram to a partial trie that shares this trie's alphabet,
+	 * replacing unknown symbols with UNK. The alphabet is only read, so any
+	 * number of threads may fill their own partial tries at once as long as
+	 * nobody adds vocabulary meanwhile.
+	 *
+	 * @param partial
+	 *            a trie from {@link #newPartialTrie()}
+	 * @param ngram
+	 */
+	public void addTo(final SymbolTrie partial, final NGram<K> ngram) {
+		final int[] keys = getSymbolIds(ngram, false);
+		replaceMissingWithUNK(keys);
+		partial.add(keys);
 	}
 
 	// add given words to alphabet by assigning symbols
 	public void buildVocabularySymbols(Set<K> words) {
+		checkNotFrozen();
+		modificationCount++;
 		for (K elem : words) {
-			addSymbolId(elem);
+			alphabet.add(elem);
 		}
 	}
 
-	
+	private void checkNotFrozen() {
+		checkState(frozenTrie == null, "The trie is frozen");
+	}
+
 	public long countDistinctStartingWith(final NGram<K> ngram,
 			final boolean useUNKs) {
+		if (frozenTrie != null) {
+			return frozenTrie.countDistinctStartingWith(
+					getSymbolIds(ngram, false), useUNKs);
+		}
 		return baseTrie.countDistinctStartingWith(getSymbolIds(ngram, false),
 				useUNKs);
 	}
 
 	public void cutoffRare(final int threshold) {
+		checkNotFrozen();
+		modificationCount++;
 		baseTrie.cutoffRare(threshold);
+		reverseIndex = null;
 
-		// Now scan everything and remove unwanted symbols from vocabulary.
-		final Set<Long> usedSymbols = Sets.newTreeSet();
-		final ArrayDeque<Trie.Node<Long>> stack = new ArrayDeque<Trie.Node<Long>>();
+		// Now scan everything and remove unwanted symbols from vocabulary,
+		// renumbering the remaining ones densely.
+		final boolean[] usedSymbols = new boolean[alphabet.idLimit()];
+		usedSymbols[unkSymbolId] = true;
+		final ArrayDeque<SymbolTrie.Node> stack = new ArrayDeque<SymbolTrie.Node>();
 		stack.push(baseTrie.getRoot());
 
 		while (!stack.isEmpty()) {
-			final Trie.Node<Long> node = stack.pop();
-			usedSymbols.addAll(node.children.keySet());
-			for (final Trie.Node<Long> childNode : node.children.values()) {
-				stack.push(childNode);
+			final SymbolTrie.Node node = stack.pop();
+			for (int i = 0; i < node.size(); i++) {
+				usedSymbols[node.keyAt(i)] = true;
+				stack.push(node.childAt(i));
 			}
 		}
 
-		final List<Long> difference = Lists.newArrayList(Sets.difference(
-				alphabet.values(), usedSymbols));
-		for (final long keyToRemove : difference) {
-			if (keyToRemove == getUnkSymbolId()) {
-				continue;
-			}
-			checkNotNull(alphabet.inverse().remove(keyToRemove));
+		final int[] mapping = alphabet.compact(usedSymbols);
+		checkState(mapping[unkSymbolId] == unkSymbolId);
+		baseTrie.remapSymbols(mapping);
+	}
+
+	/**
+	 * Replace the mutable trie with its read-only {@link FrozenTrie} form.
+	 * After this call no n-gram can be added or removed, but all the counting
+	 * queries are answered from the compact arrays. The reverse index that
+	 * {@link #getProductionsBetween} uses is frozen along with the trie.
+	 */
+	public void freeze() {
+		if (frozenTrie != null) {
+			return;
 		}
+		frozenTrie = new FrozenTrie(baseTrie);
+		baseTrie = null;
+		reverseIndex = new ReverseIndex(frozenTrie.reversed());
 	}
 
 	/**
@@ -111,18 +225,76 @@ public class LongTrie<K> implements Serializable {
 	 */
 	public long getCount(final NGram<K> ngram, final boolean useUNKs,
 			final boolean useTerminals) {
+		if (frozenTrie != null) {
+			return frozenTrie.getCount(getSymbolIds(ngram, false), useUNKs,
+					useTerminals);
+		}
 		return baseTrie.getCount(getSymbolIds(ngram, false), useUNKs,
 				useTerminals);
 	}
 
-	public Trie.Node<Long> getNGramNodeForInput(final NGram<K> ngram,
+	/**
+	 * Same as {@link #getCount(NGram, boolean, boolean)} for the symbol ids
+	 * [from, to), e.g. from {@link #getSymbolIds}. Nothing is allocated.
+	 */
+	public long getCount(final int[] symbolIds, final int from, final int to,
+			final boolean useUNKs, final boolean useTerminals) {
+		if (frozenTrie != null) {
+			return frozenTrie.getCount(symbolIds, from, to, useUNKs,
+					useTerminals);
+		}
+		return baseTrie.getCount(symbolIds, from, to, useUNKs, useTerminals);
+	}
+
+	/**
+	 * Return the maximum likelihood probability of the last symbol of [from,
+	 * to) given the others, backing off to shorter suffixes by the given
+	 * weight per dropped symbol. Equivalent to the ratio of
+	 * {@link #getCount(int[], int, int, boolean, boolean)} for the n-gram and
+	 * its context, tried from the longest order down, but all orders are
+	 * resolved together.
+	 *
+	 * @param symbolIds
+	 * @param from
+	 * @param to
+	 * @param backoffWeight
+	 * @return
+	 */
+	public double getBackoffProbability(final int[] symbolIds,
+			final int from, final int to, final double backoffWeight) {
+		if (frozenTrie != null) {
+			return frozenTrie.getBackoffProbability(symbolIds, from, to,
+					backoffWeight);
+		}
+		return baseTrie.getBackoffProbability(symbolIds, from, to,
+				backoffWeight);
+	}
+
+	/**
+	 * Return a number that changes whenever a count or the alphabet changes,
+	 * so that anything derived from the trie can tell when it is stale.
+	 */
+	public int getModificationCount() {
+		return modificationCount;
+	}
+
+	/**
+	 * Return the frozen trie, or null if the trie has not been frozen.
+	 */
+	public FrozenTrie getFrozenTrie() {
+		return frozenTrie;
+	}
+
+	public SymbolTrie.Node getNGramNodeForInput(final NGram<K> ngram,
 			final boolean useUNKs) {
-		return baseTrie
-				.getTrieNodeForInput(getSymbolIds(ngram, false), useUNKs);
+		checkNotFrozen();
+		return baseTrie.getTrieNodeForInput(getSymbolIds(ngram, false),
+				useUNKs);
 	}
 
-	public Trie.Node<Long> getNGramNodeForInput(final NGram<K> ngram,
-			final boolean useUNKs, final Trie.Node<Long> fromNode) {
+	public SymbolTrie.Node getNGramNodeForInput(final NGram<K> ngram,
+			final boolean useUNKs, final SymbolTrie.Node fromNode) {
+		checkNotFrozen();
 		return baseTrie.getTrieNodeForInput(getSymbolIds(ngram, false),
 				useUNKs, fromNode);
 	}
@@ -134,7 +306,10 @@ public class LongTrie<K> implements Serializable {
 	 * @return
 	 */
 	public Map<K, Long> getPossibleProductionsWithCounts(final NGram<K> prefix) {
-		final Trie.Node<Long> node = baseTrie.getTrieNodeForInput(
+		if (frozenTrie != null) {
+			return getFrozenProductionsWithCounts(prefix);
+		}
+		final SymbolTrie.Node node = baseTrie.getTrieNodeForInput(
 				getSymbolIds(prefix, false), false);
 
 		final Map<K, Long> productions = new TreeMap<K, Long>();
@@ -143,10 +318,9 @@ public class LongTrie<K> implements Serializable {
 			return productions;
 		}
 
-		for (final Entry<Long, Trie.Node<Long>> prodEntry : node.children
-				.entrySet()) {
-			final K key = alphabet.inverse().get(prodEntry.getKey());
-			final long count = prodEntry.getValue().count;
+		for (int i = 0; i < node.size(); i++) {
+			final K key = alphabet.getSymbol(node.keyAt(i));
+			final long count = node.childAt(i).count;
 			if (key != null) {
 				productions.put(key, count);
 			} else {
@@ -157,15 +331,271 @@ public class LongTrie<K> implements Serializable {
 		return productions;
 	}
 
-	public Trie.Node<Long> getRoot() {
+	private Map<K, Long> getFrozenProductionsWithCounts(final NGram<K> prefix) {
+		final int node = frozenTrie.getTrieNodeForInput(
+				getSymbolIds(prefix, false), false);
+
+		final Map<K, Long> productions = new TreeMap<K, Long>();
+
+		if (node == FrozenTrie.NO_NODE) {
+			return productions;
+		}
+
+		final int nChildren = frozenTrie.getChildCount(node);
+		for (int i = 0; i < nChildren; i++) {
+			final int child = frozenTrie.childAt(node, i);
+			final K key = alphabet.getSymbol(frozenTrie.getSymbol(child));
+			final long count = frozenTrie.getNodeCount(child);
+			if (key != null) {
+				productions.put(key, count);
+			} else {
+				productions.put(unkSymbol, count);
+			}
+		}
+
+		return productions;
+	}
+
+	/**
+	 * Return the productions p of the prefix for which prefix + p + suffix is
+	 * in the trie, where the suffix is computed from each production. If the
+	 * suffix function is null, all productions are returned.
+	 *
+	 * @param prefix
+	 * @param suffixForProduction
+	 * @return
+	 */
+	public List<K> getProductionsFollowedBy(final NGram<K> prefix,
+			final Function<K, NGram<K>> suffixForProduction) {
+		final List<K> productions = Lists.newArrayList();
+		final int[] prefixKeys = getSymbolIds(prefix, false);
+
+		if (frozenTrie != null) {
+			final int node = frozenTrie.getTrieNodeForInput(prefixKeys, false);
+			if (node == FrozenTrie.NO_NODE) {
+				return productions;
+			}
+			final int nChildren = frozenTrie.getChildCount(node);
+			for (int i = 0; i < nChildren; i++) {
+				final int child = frozenTrie.childAt(node, i);
+				final K symbol = getSymbolFromKey(frozenTrie.getSymbol(child));
+				if (suffixForProduction == null
+						|| frozenTrie.getTrieNodeForInput(
+								getSymbolIds(suffixForProduction.apply(symbol),
+										false), false, child) != FrozenTrie.NO_NODE) {
+					productions.add(symbol);
+				}
+			}
+			return productions;
+		}
+
+		final SymbolTrie.Node node = baseTrie.getTrieNodeForInput(prefixKeys,
+				false);
+		if (node == null) {
+			return productions;
+		}
+		for (int i = 0; i < node.size(); i++) {
+			final K symbol = getSymbolFromKey(node.keyAt(i));
+			if (suffixForProduction == null
+					|| baseTrie.getTrieNodeForInput(
+							getSymbolIds(suffixForProduction.apply(symbol),
+									false), false, node.childAt(i)) != null) {
+				productions.add(symbol);
+			}
+		}
+		return productions;
+	}
+
+	/**
+	 * Return the productions that fill the slot between the prefix and the
+	 * suffix, i.e. every symbol c such that prefix c suffix is a path. The
+	 * candidates are the children of the prefix that also precede the fixed
+	 * suffix in the reverse index, so the work is bounded by the smaller of the
+	 * two sets instead of by the fan-out of the prefix.
+	 *
+	 * @param prefix
+	 * @param fixedSuffix
+	 *            the start of the suffix that does not depend on the
+	 *            production
+	 * @param suffixForProduction
+	 *            the whole suffix for a production, or null if the suffix is
+	 *            fixedSuffix
+	 * @return
+	 */
+	public List<K> getProductionsBetween(final NGram<K> prefix,
+			final NGram<K> fixedSuffix,
+			final Function<K, NGram<K>> suffixForProduction) {
+		final List<K> productions = Lists.newArrayList();
+		final ReverseIndex index = getReverseIndex();
+		if (prefix.size() + 1 + fixedSuffix.size() > index.depth()) {
+			return productions;
+		}
+		final int[] suffixKeys = getSymbolIds(fixedSuffix, false);
+		final int[] prefixKeys = getSymbolIds(prefix, false);
+
+		if (frozenTrie != null) {
+			final FrozenTrie reversed = index.getFrozen();
+			final int predecessors = index.getFrozenPredecessors(suffixKeys);
+			if (predecessors == FrozenTrie.NO_NODE) {
+				return productions;
+			}
+			final int node = frozenTrie.getTrieNodeForInput(prefixKeys, false);
+			if (node == FrozenTrie.NO_NODE) {
+				return productions;
+			}
+			final int nChildren = frozenTrie.getChildCount(node);
+			final int nPredecessors = reversed.getChildCount(predecessors);
+			final int nCandidates = Math.min(nChildren, nPredecessors);
+			for (int i = 0; i < nCandidates; i++) {
+				final int child;
+				if (nChildren <= nPredecessors) {
+					child = frozenTrie.childAt(node, i);
+					if (reversed.getChild(predecessors,
+							frozenTrie.getSymbol(child)) == FrozenTrie.NO_NODE) {
+						continue;
+					}
+				} else {
+					child = frozenTrie.getChild(node, reversed
+							.getSymbol(reversed.childAt(predecessors, i)));
+					if (child == FrozenTrie.NO_NODE) {
+						continue;
+					}
+				}
+				final K symbol = getSymbolFromKey(frozenTrie.getSymbol(child));
+				final int[] suffix = suffixForProduction == null ? suffixKeys
+						: getSymbolIds(suffixForProduction.apply(symbol), false);
+				if (frozenTrie.getTrieNodeForInput(suffix, false, child) != FrozenTrie.NO_NODE) {
+					productions.add(symbol);
+				}
+			}
+			return productions;
+		}
+
+		final SymbolTrie.Node predecessors = index.getPredecessors(suffixKeys);
+		if (predecessors == null) {
+			return productions;
+		}
+		final SymbolTrie.Node node = baseTrie.getTrieNodeForInput(prefixKeys,
+				false);
+		if (node == null) {
+			return productions;
+		}
+		final int nCandidates = Math.min(node.size(), predecessors.size());
+		for (int i = 0; i < nCandidates; i++) {
+			final int key;
+			if (node.size() <= predecessors.size()) {
+				key = node.keyAt(i);
+				if (!predecessors.hasChild(key)) {
+					continue;
+				}
+			} else {
+				key = predecessors.keyAt(i);
+			}
+			final SymbolTrie.Node child = node.getChild(key);
+			if (child == null) {
+				continue;
+			}
+			final K symbol = getSymbolFromKey(key);
+			final int[] suffix = suffixForProduction == null ? suffixKeys
+					: getSymbolIds(suffixForProduction.apply(symbol), false);
+			if (baseTrie.getTrieNodeForInput(suffix, false, child) != null) {
+				productions.add(symbol);
+			}
+		}
+		return productions;
+	}
+
+	// A frozen trie normally has its index from freezing or from the model
+	// file. Otherwise, e.g. after deserialization, the frozen index is built
+	// here with a sort per level over at most size() longs, see
+	// FrozenTrie#reversed.
+	private synchronized ReverseIndex getReverseIndex() {
+		if (reverseIndex == null) {
+			reverseIndex = frozenTrie != null ? new ReverseIndex(
+					frozenTrie.reversed()) : new ReverseIndex(baseTrie);
+		}
+		return reverseIndex;
+	}
+
+	/**
+	 * Return the reverse index of a frozen trie, every path reversed, to be
+	 * stored along with the trie and passed back to
+	 * {@link #LongTrie(Object, List, FrozenTrie, FrozenTrie)}.
+	 */
+	public FrozenTrie getFrozenReverseIndex() {
+		checkState(frozenTrie != null, "The trie is not frozen");
+		return getReverseIndex().getFrozen();
+	}
+
+	// index the paths that an add created, past the nExisting first symbols
+	private void indexNewPaths(final int[] keys, final int from, final int to,
+			final int nExisting) {
+		if (reverseIndex == null) {
+			return;
+		}
+		for (int end = from + nExisting + 1; end <= to; end++) {
+			reverseIndex.addPath(keys, from, end);
+		}
+	}
+
+	// drop the paths that a remove unlinked, past the nRemaining first symbols
+	private void unindexRemovedPaths(final int[] keys, final int from,
+			final int to, final int nRemaining) {
+		if (reverseIndex == null) {
+			return;
+		}
+		for (int end = from + nRemaining + 1; end <= to; end++) {
+			reverseIndex.removePath(keys, from, end);
+		}
+	}
+
+	/**
+	 * Move all the sequences of a partial trie into this one.
+	 *
+	 * @param partial
+	 *            a trie from {@link #newPartialTrie()}, unusable afterwards
+	 */
+	public void merge(final SymbolTrie partial) {
+		checkNotFrozen();
+		modificationCount++;
+		baseTrie.merge(partial);
+		reverseIndex = null;
+	}
+
+	/**
+	 * Create an empty trie that uses the same symbol ids as this one, to be
+	 * filled with {@link #addTo} and merged back with {@link #merge}.
+	 */
+	public SymbolTrie newPartialTrie() {
+		return new SymbolTrie(unkSymbolId);
+	}
+
+	/**
+	 * Return the symbol table, including the UNK symbol. It must not be
+	 * modified.
+	 */
+	public SymbolTable<K> getSymbolTable() {
+		return alphabet;
+	}
+
+	public SymbolTrie.Node getRoot() {
+		checkNotFrozen();
 		return baseTrie.getRoot();
 	}
 
 	public Set<K> getRootSymbols() {
 		final Set<K> rootProductions = Sets.newHashSet();
-		final Trie.Node<Long> rootNode = baseTrie.getRoot();
-		for (final long symbolId : rootNode.children.keySet()) {
-			rootProductions.add(getSymbolFromKey(symbolId));
+		if (frozenTrie != null) {
+			final int nChildren = frozenTrie.getChildCount(FrozenTrie.ROOT);
+			for (int i = 0; i < nChildren; i++) {
+				rootProductions.add(getSymbolFromKey(frozenTrie
+						.getSymbol(frozenTrie.childAt(FrozenTrie.ROOT, i))));
+			}
+			return rootProductions;
+		}
+		final SymbolTrie.Node rootNode = baseTrie.getRoot();
+		for (int i = 0; i < rootNode.size(); i++) {
+			rootProductions.add(getSymbolFromKey(rootNode.keyAt(i)));
 		}
 
 		return rootProductions;
@@ -177,53 +607,208 @@ public class LongTrie<K> implements Serializable {
 	 * @param key
 	 * @return
 	 */
-	public K getSymbolFromKey(final Long key) {
-		if (key.equals(baseTrie.unkSymbolId)) {
-			return unkSymbol;
-		}
-		return alphabet.inverse().get(key);
+	public K getSymbolFromKey(final int key) {
+		return alphabet.getSymbol(key);
+	}
+
+	/**
+	 * Return the id of a single symbol, or {@link SymbolTable#NO_SYMBOL} if it
+	 * is not in the alphabet.
+	 *
+	 * @param symbol
+	 * @return
+	 */
+	public int getSymbolId(final K symbol) {
+		return alphabet.getId(symbol);
 	}
 
 	/**
-	 * Helper function to create symbol IDs from list.
+	 * Helper function to create symbol IDs from an n-gram. Symbols that are
+	 * not found are marked with {@link SymbolTable#NO_SYMBOL}.
 	 *
-	 * @param objectList
-	 * @param createIfNotFoundK
+	 * @param ngram
+	 * @param createIfNotFound
 	 * @return
 	 */
 	// converts tokenlist (ngram) to symbollist
-	public List<Long> getSymbolIds(final Iterable<K> objectList, final boolean createIfNotFound) {
-		
-		final List<Long> symbols = Lists.newArrayList();
-		
-		for (final K element : objectList) {
-			
-			final Long key = alphabet.get(element);
-			
-			if (key == null && createIfNotFound) {
-				symbols.add(addSymbolId(element));
-			} 
-			else if (key == null) {
-				symbols.add(null);
-			} 
-			else {
-				symbols.add(key);
+	public int[] getSymbolIds(final NGram<K> ngram,
+			final boolean createIfNotFound) {
+		final int[] symbols = new int[ngram.size()];
+
+		for (int i = 0; i < symbols.length; i++) {
+			final K element = ngram.get(i);
+			if (createIfNotFound) {
+				symbols[i] = alphabet.add(element);
+			} else {
+				symbols[i] = alphabet.getId(element);
 			}
 		}
-		
+
 		return symbols;
 	}
 
-	public Long getUnkSymbolId() {
-		return baseTrie.getUnkSymbolId();
+	/**
+	 * Convert a whole sentence to symbol ids at once, to add its windows with
+	 * {@link #add(int[], int, int)}. When no vocabulary is introduced, symbols
+	 * not in the alphabet become UNK.
+	 *
+	 * @param sentence
+	 * @param introduceVoc
+	 * @return
+	 */
+	public int[] getSentenceSymbolIds(final List<K> sentence,
+			final boolean introduceVoc) {
+		final int[] symbols = new int[sentence.size()];
+
+		for (int i = 0; i < symbols.length; i++) {
+			final K element = sentence.get(i);
+			int id;
+			if (symbolLock != null) {
+				id = lookupOptimistically(element);
+				if (id == SymbolTable.NO_SYMBOL && introduceVoc) {
+					final long stamp = symbolLock.writeLock();
+					try {
+						id = alphabet.add(element);
+					} finally {
+						symbolLock.unlockWrite(stamp);
+					}
+				}
+			} else if (introduceVoc) {
+				checkNotFrozen();
+				id = alphabet.add(element);
+			} else {
+				id = alphabet.getId(element);
+			}
+			symbols[i] = id == SymbolTable.NO_SYMBOL ? unkSymbolId : id;
+		}
+
+		return symbols;
+	}
+
+	/**
+	 * Symbol lookup for concurrent adds. Lookups are optimistic reads that
+	 * only fall back to the read lock if a new symbol was added meanwhile, so
+	 * with a fixed vocabulary they never contend. New symbols are added under
+	 * the write lock.
+	 */
+	private int[] getSymbolIdsConcurrently(final NGram<K> ngram,
+			final boolean createIfNotFound) {
+		final int[] symbols = new int[ngram.size()];
+
+		for (int i = 0; i < symbols.length; i++) {
+			final K element = ngram.get(i);
+			int id = lookupOptimistically(element);
+			if (id == SymbolTable.NO_SYMBOL && createIfNotFound) {
+				final long stamp = symbolLock.writeLock();
+				try {
+					id = alphabet.add(element);
+				} finally {
+					symbolLock.unlockWrite(stamp);
+				}
+			}
+			symbols[i] = id;
+		}
+
+		return symbols;
+	}
+
+	private int lookupOptimistically(final K element) {
+		final long optimisticStamp = symbolLock.tryOptimisticRead();
+		if (optimisticStamp != 0) {
+			try {
+				final int id = alphabet.getId(element);
+				if (symbolLock.validate(optimisticStamp)) {
+					return id;
+				}
+			} catch (final RuntimeException e) {
+				// the table was being resized under us; retry under the lock
+			}
+		}
+		final long stamp = symbolLock.readLock();
+		try {
+			return alphabet.getId(element);
+		} finally {
+			symbolLock.unlockRead(stamp);
+		}
+	}
+
+	private void replaceMissingWithUNK(final int[] keys) {
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] == SymbolTable.NO_SYMBOL) {
+				keys[i] = unkSymbolId;
+			}
+		}
+	}
+
+	public int getUnkSymbolId() {
+		return unkSymbolId;
 	}
 
 	public Set<K> getVocabulary() {
-		return alphabet.keySet();
+		return alphabet.asSet();
+	}
+
+	/**
+	 * Return the frozen form of the trie, building a copy if the trie has not
+	 * been frozen. The trie itself is left untouched.
+	 */
+	public FrozenTrie toFrozenTrie() {
+		if (frozenTrie != null) {
+			return frozenTrie;
+		}
+		return new FrozenTrie(baseTrie);
+	}
+
+	/**
+	 * Switch concurrent adds on or off. While on, {@link #add(NGram, boolean)}
+	 * may be called from several threads at once, including with new
+	 * vocabulary. No other operation may run concurrently with the adds, and
+	 * the mode should be switched off once all adding threads are done.
+	 *
+	 * @param concurrentAdds
+	 */
+	public void setConcurrent(final boolean concurrentAdds) {
+		checkNotFrozen();
+		if (concurrentAdds == isConcurrent()) {
+			return;
+		}
+		if (concurrentAdds) {
+			// concurrent adds do not maintain it
+			reverseIndex = null;
+			// with room for some new vocabulary
+			final int nSymbols = alphabet.idLimit();
+			baseTrie.beginConcurrentAdds(nSymbols + nSymbols / 4 + 16);
+			symbolLock = new StampedLock();
+		} else {
+			symbolLock = null;
+			baseTrie.endConcurrentAdds();
+		}
+	}
+
+	public boolean isConcurrent() {
+		return symbolLock != null;
+	}
+
+	public boolean isFrozen() {
+		return frozenTrie != null;
 	}
 
 	public boolean isUNK(final K token) {
-		return !alphabet.containsKey(token);
+		return !alphabet.contains(token);
+	}
+
+	/**
+	 * Undo {@link #add(int[], int, int)} for the same window.
+	 *
+	 * @param sentenceIds
+	 * @param from
+	 * @param to
+	 */
+	public void remove(final int[] sentenceIds, final int from, final int to) {
+		checkNotFrozen();
+		modificationCount++;
+		unindexRemovedPaths(sentenceIds, from, to,
+				baseTrie.remove(sentenceIds, from, to));
 	}
 
 	/**
@@ -232,16 +817,41 @@ public class LongTrie<K> implements Serializable {
 	 * @param ngram
 	 */
 	public void remove(final NGram<K> ngram) {
-		final List<Long> keys = getSymbolIds(ngram, false);
+		checkNotFrozen();
+		modificationCount++;
+		final int[] keys = getSymbolIds(ngram, false);
 
-		// replace nulls with unks
-		for (int i = 0; i < keys.size(); i++) {
-			if (keys.get(i) == null) {
-				keys.set(i, baseTrie.getUnkSymbolId());
-			}
-		}
+		// replace missing symbols with unks
+		replaceMissingWithUNK(keys);
+
+		unindexRemovedPaths(keys, 0, keys.length, baseTrie.remove(keys));
+	}
+
+	/**
+	 * Take the symbol out of the alphabet, so that it is treated as UNK from
+	 * now on. No n-gram in the trie may still contain it.
+	 *
+	 * @param symbol
+	 * @return the id the symbol had, to pass to {@link #restoreSymbol}, or
+	 *         NO_SYMBOL if it was not in the alphabet
+	 */
+	public int hideSymbol(final K symbol) {
+		checkNotFrozen();
+		modificationCount++;
+		checkArgument(!unkSymbol.equals(symbol), "Cannot hide UNK");
+		return alphabet.remove(symbol);
+	}
 
-		baseTrie.remove(keys);
+	/**
+	 * Put a symbol taken out by {@link #hideSymbol} back under its old id.
+	 *
+	 * @param symbol
+	 * @param id
+	 */
+	public void restoreSymbol(final K symbol, final int id) {
+		checkNotFrozen();
+		modificationCount++;
+		alphabet.put(symbol, id);
 	}
 
 	/**
@@ -256,9 +866,8 @@ public class LongTrie<K> implements Serializable {
 		
 		for (K gram : ngram) {
 			
-			Long key = alphabet.get(gram);
-			if (key == null) {
-				ngramCopy.add(alphabet.inverse().get(baseTrie.unkSymbolId));
+			if (!alphabet.contains(gram)) {
+				ngramCopy.add(unkSymbol);
 			} 
 			else {
 				ngramCopy.add(gram);
@@ -275,6 +884,10 @@ public class LongTrie<K> implements Serializable {
 	 * @return
 	 */
 	public long sumStartingWith(final NGram<K> ngram, final boolean useUNKs) {
+		if (frozenTrie != null) {
+			return frozenTrie.sumStartingWith(getSymbolIds(ngram, false),
+					useUNKs);
+		}
 		return baseTrie.sumStartingWith(getSymbolIds(ngram, false), useUNKs);
 	}
 
@@ -284,13 +897,29 @@ public class LongTrie<K> implements Serializable {
 		final StringBuffer buf = new StringBuffer();
 		buf.append('[');
 		
-		for (Entry<Long, Trie.Node<Long>> ngramEntry : baseTrie.getRoot().children.entrySet()) {
+		if (frozenTrie != null) {
+			final List<String> prods = Lists.newArrayList();
+			final int nChildren = frozenTrie.getChildCount(FrozenTrie.ROOT);
+			for (int i = 0; i < nChildren; i++) {
+				final int child = frozenTrie.childAt(FrozenTrie.ROOT, i);
+				toStringHelper(getSymbolFromKey(frozenTrie.getSymbol(child))
+						.toString(), child, prods);
+			}
+			for (final String prod : prods) {
+				buf.append(prod + System.lineSeparator());
+			}
+			buf.append(']');
+			return buf.toString();
+		}
+		
+		final SymbolTrie.Node root = baseTrie.getRoot();
+		for (int i = 0; i < root.size(); i++) {
 			
-			Long ngram = ngramEntry.getKey();
+			int ngram = root.keyAt(i);
 			List<String> prods = Lists.newArrayList();
 			
-			toStringHelper(alphabet.inverse().get(ngram).toString(),
-					ngramEntry.getValue(), prods);
+			toStringHelper(getSymbolFromKey(ngram).toString(),
+					root.childAt(i), prods);
 			for (final String prod : prods) {
 				buf.append(prod + System.lineSeparator());
 			}
@@ -307,16 +936,32 @@ public class LongTrie<K> implements Serializable {
 	 * @param productions
 	 */
 	private void toStringHelper(String currentString,
-			Trie.Node<Long> currentUnit, List<String> productions) {
-		if (currentUnit.children.size() == 0) {
+			SymbolTrie.Node currentUnit, List<String> productions) {
+		if (currentUnit.size() == 0) {
 			productions.add(currentString + " count:" + currentUnit.count);
 		} else {
-			for (Entry<Long, Trie.Node<Long>> prodEntry : currentUnit.children
-					.entrySet()) {
-				Long prod = prodEntry.getKey();
+			for (int i = 0; i < currentUnit.size(); i++) {
+				int prod = currentUnit.keyAt(i);
+				toStringHelper(
+						currentString + ", " + getSymbolFromKey(prod),
+						currentUnit.childAt(i), productions);
+			}
+		}
+	}
+
+	private void toStringHelper(String currentString, int currentUnit,
+			List<String> productions) {
+		final int nChildren = frozenTrie.getChildCount(currentUnit);
+		if (nChildren == 0) {
+			productions.add(currentString + " count:"
+					+ frozenTrie.getNodeCount(currentUnit));
+		} else {
+			for (int i = 0; i < nChildren; i++) {
+				final int child = frozenTrie.childAt(currentUnit, i);
 				toStringHelper(
-						currentString + ", " + alphabet.inverse().get(prod),
-						prodEntry.getValue(), productions);
+						currentString + ", "
+								+ getSymbolFromKey(frozenTrie.getSymbol(child)),
+						child, productions);
 			}
 		}
 	}
@@ -0,0 +1,127 @@
+package Trie;
+
+import static com.google.common.base.Preconditions.checkState;
+
+import java.util.Arrays;
+
+/**
+ * Every path of a trie, reversed. The symbols that precede a given suffix
+ * somewhere in the trie are then the children of a single node. Each reversed
+ * path is counted once per forward path through it, so the index can follow
+ * the forward trie as paths appear and disappear.
+ *
+ * The index of a frozen trie is itself frozen, see {@link FrozenTrie#reversed},
+ * so it is built with a few sorts of primitive arrays and can be stored and
+ * mapped along with the trie.
+ */
+class ReverseIndex {
+
+	// exactly one of them is set
+	private final SymbolTrie reversed;
+	private final FrozenTrie frozen;
+
+	// no path is longer than this
+	private int depth = 0;
+
+	ReverseIndex(final SymbolTrie forward) {
+		reversed = new SymbolTrie(forward.getUnkSymbolId());
+		frozen = null;
+		addPaths(forward.getRoot(), new int[8], 0);
+	}
+
+	/**
+	 * Wrap a frozen index, from {@link FrozenTrie#reversed}.
+	 *
+	 * @param frozenIndex
+	 */
+	ReverseIndex(final FrozenTrie frozenIndex) {
+		reversed = null;
+		frozen = frozenIndex;
+		depth = frozen.depth();
+	}
+
+	private void addPaths(final SymbolTrie.Node node, int[] path,
+			final int length) {
+		if (length > 0) {
+			addPath(path, 0, length);
+		}
+		if (length == path.length) {
+			path = Arrays.copyOf(path, 2 * length);
+		}
+		for (int i = 0; i < node.size(); i++) {
+			path[length] = node.keyAt(i);
+			addPaths(node.childAt(i), path, length + 1);
+		}
+	}
+
+	/**
+	 * Index the forward path [from, to) of the given symbols.
+	 */
+	void addPath(final int[] symbols, final int from, final int to) {
+		checkState(frozen == null, "The index is frozen");
+		reversed.add(reverse(symbols, from, to));
+		depth = Math.max(depth, to - from);
+	}
+
+	/**
+	 * Drop the forward path [from, to) of the given symbols.
+	 */
+	void removePath(final int[] symbols, final int from, final int to) {
+		checkState(frozen == null, "The index is frozen");
+		reversed.remove(reverse(symbols, from, to));
+	}
+
+	int depth() {
+		return depth;
+	}
+
+	/**
+	 * Return the node whose children are the symbols that precede the suffix
+	 * on some path, or null if the suffix is on no path.
+	 *
+	 * @param suffix
+	 * @return
+	 */
+	SymbolTrie.Node getPredecessors(final int[] suffix) {
+		checkState(frozen == null, "The index is frozen");
+		SymbolTrie.Node node = reversed.getRoot();
+		for (int i = suffix.length - 1; i >= 0 && node != null; i--) {
+			if (suffix[i] == SymbolTrie.NO_SYMBOL) {
+				return null;
+			}
+			node = node.getChild(suffix[i]);
+		}
+		return node;
+	}
+
+	/**
+	 * Same as {@link #getPredecessors} for a frozen index: return the node of
+	 * {@link #getFrozen()} whose children precede the suffix, or NO_NODE.
+	 *
+	 * @param suffix
+	 * @return
+	 */
+	int getFrozenPredecessors(final int[] suffix) {
+		int node = FrozenTrie.ROOT;
+		for (int i = suffix.length - 1; i >= 0 && node != FrozenTrie.NO_NODE; i--) {
+			node = frozen.getChild(node, suffix[i]);
+		}
+		return node;
+	}
+
+	/**
+	 * Return the frozen index, or null if the index follows a mutable trie.
+	 */
+	FrozenTrie getFrozen() {
+		return frozen;
+	}
+
+	private static int[] reverse(final int[] symbols, final int from,
+			final int to) {
+		final int[] reversedSymbols = new int[to - from];
+		for (int i = from; i < to; i++) {
+			reversedSymbols[to - 1 - i] = symbols[i];
+		}
+		return reversedSymbols;
+	}
+}
@@ -0,0 +1,336 @@
+package Trie;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.Serializable;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Maps symbols to dense, 0-based int ids and back. The reverse mapping is a
+ * plain array indexed by id and the forward mapping is an open-addressing
+ * (linear probing) table of ids, so neither direction boxes anything.
+ *
+ * @param <K>
+ */
+public class SymbolTable<K> implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	public static final int NO_SYMBOL = -1;
+
+	private static final int MIN_TABLE_SIZE = 16;
+
+	// id -> symbol, null for ids that are not in use
+	private Object[] symbols;
+
+	// number of ids handed out, i.e. the next id
+	private int nextId = 0;
+
+	// number of ids currently mapped to a symbol
+	private int size = 0;
+
+	// id + 1 of the symbol hashed to each slot, 0 for an empty slot
+	private int[] slots;
+
+	public SymbolTable() {
+		symbols = new Object[MIN_TABLE_SIZE / 2];
+		slots = new int[MIN_TABLE_SIZE];
+	}
+
+	private static int hash(final Object symbol) {
+		final int h = symbol.hashCode() * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * Return the id of the symbol, giving it the next free id if it has none.
+	 *
+	 * @param symbol
+	 * @return
+	 */
+	public int add(final K symbol) {
+		final int existing = getId(symbol);
+		if (existing != NO_SYMBOL) {
+			return existing;
+		}
+		final int id = nextId;
+		put(symbol, id);
+		return id;
+	}
+
+	/**
+	 * Return a view of all the symbols in the table.
+	 */
+	public Set<K> asSet() {
+		return new AbstractSet<K>() {
+
+			@Override
+			public boolean contains(final Object o) {
+				return o != null && indexOf(o) != NO_SYMBOL;
+			}
+
+			@Override
+			public Iterator<K> iterator() {
+				return new Iterator<K>() {
+					int next = advance(0);
+
+					private int advance(int from) {
+						while (from < nextId && symbols[from] == null) {
+							from++;
+						}
+						return from;
+					}
+
+					@Override
+					public boolean hasNext() {
+						return next < nextId;
+					}
+
+					@SuppressWarnings("unchecked")
+					@Override
+					public K next() {
+						if (next >= nextId) {
+							throw new NoSuchElementException();
+						}
+						final K symbol = (K) symbols[next];
+						next = advance(next + 1);
+						return symbol;
+					}
+
+					@Override
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+
+	public boolean contains(final K symbol) {
+		return indexOf(symbol) != NO_SYMBOL;
+	}
+
+	/**
+	 * Return the id of the symbol, or NO_SYMBOL.
+	 *
+	 * @param symbol
+	 * @return
+	 */
+	public int getId(final K symbol) {
+		return indexOf(symbol);
+	}
+
+	/**
+	 * Return the id of the String symbol made of the chars [from, to), or
+	 * NO_SYMBOL, without building the String.
+	 *
+	 * @param chars
+	 * @param from
+	 * @param to
+	 * @return
+	 */
+	public int getId(final char[] chars, final int from, final int to) {
+		// String.hashCode of the range
+		int h = 0;
+		for (int i = from; i < to; i++) {
+			h = 31 * h + chars[i];
+		}
+		h *= 0x9E3779B9;
+		h ^= h >>> 16;
+
+		final int mask = slots.length - 1;
+		int slot = h & mask;
+		while (slots[slot] != 0) {
+			final int id = slots[slot] - 1;
+			if (symbols[id] instanceof String
+					&& equals((String) symbols[id], chars, from, to)) {
+				return id;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return NO_SYMBOL;
+	}
+
+	private static boolean equals(final String symbol, final char[] chars,
+			final int from, final int to) {
+		if (symbol.length() != to - from) {
+			return false;
+		}
+		for (int i = from; i < to; i++) {
+			if (symbol.charAt(i - from) != chars[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Return the symbol with the given id, or null if the id is not in use.
+	 *
+	 * @param id
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public K getSymbol(final int id) {
+		if (id < 0 || id >= nextId) {
+			return null;
+		}
+		return (K) symbols[id];
+	}
+
+	/**
+	 * The number of ids handed out so far. All ids are smaller than this.
+	 */
+	public int idLimit() {
+		return nextId;
+	}
+
+	private int indexOf(final Object symbol) {
+		final int mask = slots.length - 1;
+		int slot = hash(symbol) & mask;
+		while (slots[slot] != 0) {
+			final int id = slots[slot] - 1;
+			if (symbols[id].equals(symbol)) {
+				return id;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return NO_SYMBOL;
+	}
+
+	/**
+	 * Map the symbol to a specific id. Neither the symbol nor the id may be
+	 * in use.
+	 *
+	 * @param symbol
+	 * @param id
+	 */
+	public void put(final K symbol, final int id) {
+		checkNotNull(symbol);
+		checkArgument(id >= 0);
+		checkArgument(indexOf(symbol) == NO_SYMBOL, "%s already has an id",
+				symbol);
+		checkArgument(id >= nextId || symbols[id] == null, "id %s in use", id);
+
+		if (id >= symbols.length) {
+			symbols = Arrays.copyOf(symbols,
+					Math.max(id + 1, symbols.length + (symbols.length >> 1)));
+		}
+		symbols[id] = symbol;
+		nextId = Math.max(nextId, id + 1);
+		size++;
+
+		// keep the load factor under 1/2
+		if (2 * size > slots.length) {
+			rehash(2 * slots.length);
+		} else {
+			insertSlot(symbol, id);
+		}
+	}
+
+	private void insertSlot(final Object symbol, final int id) {
+		final int mask = slots.length - 1;
+		int slot = hash(symbol) & mask;
+		while (slots[slot] != 0) {
+			slot = (slot + 1) & mask;
+		}
+		slots[slot] = id + 1;
+	}
+
+	private void rehash(final int tableSize) {
+		slots = new int[tableSize];
+		for (int id = 0; id < nextId; id++) {
+			if (symbols[id] != null) {
+				insertSlot(symbols[id], id);
+			}
+		}
+	}
+
+	/**
+	 * Remove the symbol. Its id is left vacant and is not handed out again
+	 * by {@link #add}.
+	 *
+	 * @param symbol
+	 * @return the id the symbol had, or NO_SYMBOL
+	 */
+	public int remove(final K symbol) {
+		final int mask = slots.length - 1;
+		int slot = hash(symbol) & mask;
+		while (slots[slot] != 0) {
+			final int id = slots[slot] - 1;
+			if (symbols[id].equals(symbol)) {
+				deleteSlot(slot);
+				symbols[id] = null;
+				size--;
+				return id;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return NO_SYMBOL;
+	}
+
+	// backward shift deletion, so that no tombstones are needed
+	private void deleteSlot(int slot) {
+		final int mask = slots.length - 1;
+		int next = (slot + 1) & mask;
+		while (slots[next] != 0) {
+			final int home = hash(symbols[slots[next] - 1]) & mask;
+			// move the entry back if its home is not within (slot, next]
+			if (((next - home) & mask) >= ((next - slot) & mask)) {
+				slots[slot] = slots[next];
+				slot = next;
+			}
+			next = (next + 1) & mask;
+		}
+		slots[slot] = 0;
+	}
+
+	/**
+	 * Keep only the ids marked in {@code keep} and renumber them densely,
+	 * preserving their order.
+	 *
+	 * @param keep
+	 *            one entry per id
+	 * @return the new id of every old id, or NO_SYMBOL if it was dropped
+	 */
+	public int[] compact(final boolean[] keep) {
+		final int[] mapping = new int[nextId];
+		int newId = 0;
+		for (int id = 0; id < nextId; id++) {
+			if (id < keep.length && keep[id] && symbols[id] != null) {
+				symbols[newId] = symbols[id];
+				mapping[id] = newId;
+				newId++;
+			} else {
+				mapping[id] = NO_SYMBOL;
+			}
+		}
+		Arrays.fill(symbols, newId, nextId, null);
+		nextId = newId;
+		size = newId;
+
+		int tableSize = MIN_TABLE_SIZE;
+		while (tableSize < 2 * size) {
+			tableSize *= 2;
+		}
+		rehash(tableSize);
+		return mapping;
+	}
+
+	/**
+	 * The number of symbols in the table.
+	 */
+	public int size() {
+		return size;
+	}
+}
@@ -0,0 +1,655 @@
+package Trie;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A trie over dense int symbol ids, see {@link SymbolTable}. It has the same
+ * counting semantics as {@link Trie}, but every node keeps its children in a
+ * sorted int key array instead of a {@code TreeMap}, so no key is ever boxed
+ * and a child lookup is a single scan or binary search.
+ */
+public class SymbolTrie implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Marks a position in a key sequence whose symbol is not in the alphabet.
+	 */
+	public static final int NO_SYMBOL = SymbolTable.NO_SYMBOL;
+
+	// below this fan-out a linear scan beats a binary search
+	private static final int LINEAR_SCAN_LIMIT = 8;
+
+	private static final int[] NO_KEYS = new int[0];
+	private static final Node[] NO_CHILDREN = new Node[0];
+
+	public static class Node implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		// sorted child keys, only the first size entries are used
+		int[] keys = NO_KEYS;
+		Node[] children = NO_CHILDREN;
+		int size = 0;
+
+		public long count = 0;
+		public long isLast = 0;
+
+		public Node childAt(final int index) {
+			checkArgument(index < size);
+			return children[index];
+		}
+
+		/**
+		 * Return the child with the given key or null if there is none.
+		 *
+		 * @param key
+		 * @return
+		 */
+		public Node getChild(final int key) {
+			final int pos = indexOf(key);
+			return pos >= 0 ? children[pos] : null;
+		}
+
+		public boolean hasChild(final int key) {
+			return indexOf(key) >= 0;
+		}
+
+		public int keyAt(final int index) {
+			checkArgument(index < size);
+			return keys[index];
+		}
+
+		public int size() {
+			return size;
+		}
+
+		Node getOrCreateChild(final int key) {
+			final int pos = indexOf(key);
+			if (pos >= 0) {
+				return children[pos];
+			}
+			final Node child = new Node();
+			insertAt(-(pos + 1), key, child);
+			return child;
+		}
+
+		/**
+		 * Returns the position of the key, or (-(insertion point) - 1) as
+		 * {@link Arrays#binarySearch(int[], int)} does.
+		 */
+		int indexOf(final int key) {
+			if (size <= LINEAR_SCAN_LIMIT) {
+				for (int i = 0; i < size; i++) {
+					if (keys[i] == key) {
+						return i;
+					} else if (keys[i] > key) {
+						return -(i + 1);
+					}
+				}
+				return -(size + 1);
+			}
+			return Arrays.binarySearch(keys, 0, size, key);
+		}
+
+		void putChild(final int key, final Node child) {
+			final int pos = indexOf(key);
+			if (pos >= 0) {
+				children[pos] = child;
+			} else {
+				insertAt(-(pos + 1), key, child);
+			}
+		}
+
+		Node removeChild(final int key) {
+			final int pos = indexOf(key);
+			if (pos < 0) {
+				return null;
+			}
+			final Node removed = children[pos];
+			System.arraycopy(keys, pos + 1, keys, pos, size - pos - 1);
+			System.arraycopy(children, pos + 1, children, pos, size - pos - 1);
+			size--;
+			children[size] = null;
+			return removed;
+		}
+
+		private void insertAt(final int pos, final int key, final Node child) {
+			if (size == keys.length) {
+				final int newLength = size == 0 ? 2 : size + (size >> 1) + 1;
+				keys = Arrays.copyOf(keys, newLength);
+				children = Arrays.copyOf(children, newLength);
+			}
+			System.arraycopy(keys, pos, keys, pos + 1, size - pos);
+			System.arraycopy(children, pos, children, pos + 1, size - pos);
+			keys[pos] = key;
+			children[pos] = child;
+			size++;
+		}
+
+		/**
+		 * Drop the spare capacity of the child arrays.
+		 */
+		void trim() {
+			if (keys.length != size) {
+				keys = size == 0 ? NO_KEYS : Arrays.copyOf(keys, size);
+				children = size == 0 ? NO_CHILDREN : Arrays.copyOf(children,
+						size);
+			}
+		}
+	}
+
+	// Token for unique (rare) tokens
+	protected final int unkSymbolId;
+
+	// root
+	private final Node root = new Node();
+
+	/**
+	 * The root while concurrent adds run: its children with a key below the
+	 * length of the table are set in the table with a compare and set, and
+	 * its counts are adders, so threads only meet on the same child. The
+	 * children with larger keys, symbols added meanwhile, stay in the root
+	 * under its monitor.
+	 */
+	private static final class ConcurrentRoot {
+		final AtomicReferenceArray<Node> children;
+		final LongAdder count = new LongAdder();
+		final LongAdder isLast = new LongAdder();
+
+		ConcurrentRoot(final int nSymbols) {
+			children = new AtomicReferenceArray<Node>(nSymbols);
+		}
+	}
+
+	// null unless concurrent adds are on
+	private transient ConcurrentRoot concurrentRoot;
+
+	public SymbolTrie(final int unk) {
+		unkSymbolId = unk;
+	}
+
+	public int add(final int[] elementSequence) {
+		return add(elementSequence, 0, elementSequence.length);
+	}
+
+	/**
+	 * Add the subsequence [from, to) of the given symbols.
+	 *
+	 * @param symbols
+	 * @param from
+	 * @param to
+	 * @return the length of the longest prefix of the subsequence that was
+	 *         already in the trie
+	 */
+	public int add(final int[] symbols, final int from, final int to) {
+		root.count++;
+		Node currentNode = root;
+		int nExisting = to - from;
+
+		for (int i = from; i < to; i++) {
+			final Node next = currentNode.getOrCreateChild(symbols[i]);
+			if (next.count == 0 && nExisting == to - from) {
+				// just created, and so is everything below it
+				nExisting = i - from;
+			}
+			next.count++;
+			currentNode = next;
+		}
+
+		currentNode.isLast += 1;
+		return nExisting;
+	}
+
+	/**
+	 * Start concurrent adds, see {@link #addConcurrently(int[])}.
+	 *
+	 * @param nSymbols
+	 *            the symbol ids expected, ids from 0 to nSymbols - 1
+	 */
+	public void beginConcurrentAdds(final int nSymbols) {
+		checkState(concurrentRoot == null, "Concurrent adds already on");
+		final ConcurrentRoot concurrent = new ConcurrentRoot(nSymbols);
+		int kept = 0;
+		for (int i = 0; i < root.size; i++) {
+			if (root.keys[i] >= 0 && root.keys[i] < nSymbols) {
+				concurrent.children.set(root.keys[i], root.children[i]);
+			} else {
+				root.keys[kept] = root.keys[i];
+				root.children[kept] = root.children[i];
+				kept++;
+			}
+		}
+		Arrays.fill(root.children, kept, root.size, null);
+		root.size = kept;
+		concurrentRoot = concurrent;
+	}
+
+	/**
+	 * End concurrent adds, once all the adding threads are done, and put the
+	 * root back together.
+	 */
+	public void endConcurrentAdds() {
+		final ConcurrentRoot concurrent = concurrentRoot;
+		checkState(concurrent != null, "Concurrent adds not on");
+		concurrentRoot = null;
+		int nChildren = root.size;
+		for (int key = 0; key < concurrent.children.length(); key++) {
+			if (concurrent.children.get(key) != null) {
+				nChildren++;
+			}
+		}
+		// the keys of the table all come before the ones left in the root
+		final int[] keys = new int[nChildren];
+		final Node[] children = new Node[nChildren];
+		int size = 0;
+		for (int key = 0; key < concurrent.children.length(); key++) {
+			final Node child = concurrent.children.get(key);
+			if (child != null) {
+				keys[size] = key;
+				children[size] = child;
+				size++;
+			}
+		}
+		System.arraycopy(root.keys, 0, keys, size, root.size);
+		System.arraycopy(root.children, 0, children, size, root.size);
+		root.keys = keys;
+		root.children = children;
+		root.size = nChildren;
+		root.count += concurrent.count.sum();
+		root.isLast += concurrent.isLast.sum();
+	}
+
+	/**
+	 * Same as {@link #add(int[])}, but safe to call from several threads at
+	 * once, between {@link #beginConcurrentAdds} and
+	 * {@link #endConcurrentAdds}. The children of the root, one per symbol,
+	 * are set without locking and its counts are adders. Below the root,
+	 * each node guards its own counts and children with its monitor, and a
+	 * thread holds one monitor at a time, so threads only wait on each other
+	 * on the n-grams they share a prefix of. No other operation may run
+	 * while concurrent adds are in progress.
+	 *
+	 * @param elementSequence
+	 */
+	public void addConcurrently(final int[] elementSequence) {
+		addConcurrently(elementSequence, 0, elementSequence.length);
+	}
+
+	/**
+	 * Same as {@link #add(int[], int, int)}, but safe to call from several
+	 * threads at once, see {@link #addConcurrently(int[])}.
+	 *
+	 * @param symbols
+	 * @param from
+	 * @param to
+	 */
+	public void addConcurrently(final int[] symbols, final int from,
+			final int to) {
+		final ConcurrentRoot concurrent = concurrentRoot;
+		checkState(concurrent != null, "Concurrent adds not on");
+		concurrent.count.increment();
+		if (from == to) {
+			concurrent.isLast.increment();
+			return;
+		}
+
+		Node node = getOrCreateRootChild(concurrent, symbols[from]);
+		for (int i = from;; i++) {
+			final Node next;
+			synchronized (node) {
+				node.count++;
+				if (i == to - 1) {
+					node.isLast++;
+					return;
+				}
+				next = node.getOrCreateChild(symbols[i + 1]);
+			}
+			node = next;
+		}
+	}
+
+	private Node getOrCreateRootChild(final ConcurrentRoot concurrent,
+			final int key) {
+		if (key >= 0 && key < concurrent.children.length()) {
+			final Node child = concurrent.children.get(key);
+			if (child != null) {
+				return child;
+			}
+			final Node created = new Node();
+			return concurrent.children.compareAndSet(key, null, created) ? created
+					: concurrent.children.get(key);
+		}
+		synchronized (root) {
+			return root.getOrCreateChild(key);
+		}
+	}
+
+	private void checkCount(final Node node) {
+		if (node.count >= 0) {
+			return;
+		}
+		node.count = 0;
+		throw new IllegalStateException("Removed a non-existent sequence.");
+	}
+
+	// Counts the number of distinct nodes with 'prefix' as prefix
+	public long countDistinctStartingWith(final int[] prefix,
+			final boolean useUNKs) {
+		checkArgument(prefix.length > 0);
+
+		final Node currentNode = getTrieNodeForInput(prefix, useUNKs);
+
+		if (currentNode == null) {
+			return 0;
+		}
+
+		if (!useUNKs && currentNode.hasChild(unkSymbolId)) {
+			return currentNode.size - 1;
+		} else {
+			return currentNode.size;
+		}
+	}
+
+	// counts nodes in sub-trie of given ngramSymbols
+	public long getCount(final int[] ngramSymbols, final boolean useUNKs,
+			final boolean useTerminals) {
+		return getCount(ngramSymbols, 0, ngramSymbols.length, useUNKs,
+				useTerminals);
+	}
+
+	/**
+	 * Same as {@link #getCount(int[], boolean, boolean)} for the symbols
+	 * [from, to).
+	 */
+	public long getCount(final int[] symbols, final int from, final int to,
+			final boolean useUNKs, final boolean useTerminals) {
+		final Node current = getTrieNodeForInput(symbols, from, to, useUNKs,
+				root);
+
+		if (current == null) {
+			return 0;
+		}
+
+		final long unkDiscountCount;
+		if (!useUNKs) {
+			final Node unkUnit = current.getChild(unkSymbolId);
+			unkDiscountCount = unkUnit != null ? unkUnit.count : 0;
+		} else {
+			unkDiscountCount = 0;
+		}
+
+		final long totalCount;
+		if (useTerminals) {
+			totalCount = current.count - unkDiscountCount;
+		} else {
+			totalCount = current.count - current.isLast - unkDiscountCount;
+		}
+
+		checkArgument(totalCount >= 0);
+		return totalCount;
+	}
+
+	/**
+	 * Return the maximum likelihood probability of the last symbol of [from,
+	 * to) given the others, backing off to shorter suffixes and multiplying by
+	 * the backoff weight once per dropped symbol. The counts are the same as
+	 * {@link #getCount(int[], int, int, boolean, boolean)} with UNKs for
+	 * unigrams only.
+	 *
+	 * Each order takes one walk to its context; the n-gram is a child of the
+	 * context, so both of its counts come from that walk.
+	 *
+	 * @param symbols
+	 * @param from
+	 * @param to
+	 * @param backoffWeight
+	 * @return
+	 * @throws IllegalArgumentException
+	 *             if the last symbol is unknown and there is no UNK
+	 */
+	public double getBackoffProbability(final int[] symbols, final int from,
+			final int to, final double backoffWeight) {
+		checkArgument(from < to);
+		final int last = symbols[to - 1];
+
+		for (int start = from; start < to; start++) {
+			final boolean unigram = start == to - 1;
+			final Node context = getTrieNodeForInput(symbols, start, to - 1,
+					false, root);
+			if (context == null) {
+				continue;
+			}
+			Node node = last != NO_SYMBOL ? context.getChild(last) : null;
+			if (node == null && unigram) {
+				node = context.getChild(unkSymbolId);
+			}
+			if (node == null) {
+				continue;
+			}
+
+			final long thisNgramCount = unigram ? node.count : node.count
+					- unkCount(node);
+			checkArgument(thisNgramCount >= 0);
+			if (thisNgramCount == 0) {
+				continue;
+			}
+			final long productionCount = unigram ? context.count
+					- context.isLast : context.count - context.isLast
+					- unkCount(context);
+			checkArgument(productionCount >= thisNgramCount);
+
+			double probability = ((double) thisNgramCount)
+					/ ((double) productionCount);
+			checkArgument(!Double.isInfinite(probability));
+			for (int dropped = start - from; dropped > 0; dropped--) {
+				probability = backoffWeight * probability;
+			}
+			return probability;
+		}
+		throw new IllegalArgumentException();
+	}
+
+	private long unkCount(final Node node) {
+		final Node unkUnit = node.getChild(unkSymbolId);
+		return unkUnit != null ? unkUnit.count : 0;
+	}
+
+	public final Node getRoot() {
+		return root;
+	}
+
+	public final Node getTrieNodeForInput(final int[] ngramSymbols,
+			final boolean useUNKs) {
+		return getTrieNodeForInput(ngramSymbols, useUNKs, root);
+	}
+
+	public Node getTrieNodeForInput(final int[] ngramSymbols,
+			final boolean useUNKs, final Node startNode) {
+		return getTrieNodeForInput(ngramSymbols, 0, ngramSymbols.length,
+				useUNKs, startNode);
+	}
+
+	public Node getTrieNodeForInput(final int[] symbols, final int from,
+			final int to, final boolean useUNKs, final Node startNode) {
+		Node fromNode = startNode;
+
+		for (int i = from; i < to; i++) {
+			final int symbol = symbols[i];
+			Node next = symbol != NO_SYMBOL ? fromNode.getChild(symbol) : null;
+			if (next == null && useUNKs) {
+				next = fromNode.getChild(unkSymbolId);
+			}
+			if (next == null) {
+				return null;
+			}
+			fromNode = next;
+		}
+
+		return fromNode;
+	}
+
+	public int getUnkSymbolId() {
+		return unkSymbolId;
+	}
+
+	/**
+	 * Add all the sequences of the other trie to this one. Nodes of the other
+	 * trie are moved, not copied, so it must not be used afterwards.
+	 *
+	 * @param other
+	 */
+	public void merge(final SymbolTrie other) {
+		checkArgument(other.unkSymbolId == unkSymbolId);
+		mergeTrieNodes(other.root, root);
+	}
+
+	private void mergeTrieNodes(final Node from, final Node to) {
+		checkNotNull(to).count += checkNotNull(from).count;
+
+		to.isLast += from.isLast;
+
+		for (int i = 0; i < from.size; i++) {
+			final int key = from.keys[i];
+			final Node existing = to.getChild(key);
+			if (existing != null) {
+				mergeTrieNodes(from.children[i], existing);
+			} else {
+				to.putChild(key, from.children[i]);
+			}
+		}
+	}
+
+	/**
+	 * Remove one occurrence of the sequence. A node whose count drops to zero
+	 * is unlinked from its parent, so the trie looks exactly as if the
+	 * sequence had never been added.
+	 *
+	 * @param elementSequence
+	 */
+	public final int remove(final int[] elementSequence) {
+		return remove(elementSequence, 0, elementSequence.length);
+	}
+
+	/**
+	 * Remove one occurrence of the subsequence [from, to) of the given
+	 * symbols, see {@link #remove(int[])}.
+	 *
+	 * @param symbols
+	 * @param from
+	 * @param to
+	 * @return the length of the longest prefix of the subsequence that is
+	 *         still in the trie
+	 */
+	public final int remove(final int[] symbols, final int from, final int to) {
+		root.count--;
+		checkCount(root);
+
+		Node currentUnit = root;
+		int nRemaining = to - from;
+
+		for (int i = from; i < to; i++) {
+			final int token = symbols[i];
+			final Node next = currentUnit.getOrCreateChild(token);
+			next.count--;
+
+			checkCount(next);
+			if (next.count == 0) {
+				// nothing passes through it anymore, so its subtree is empty
+				currentUnit.removeChild(token);
+				nRemaining = Math.min(nRemaining, i - from);
+			}
+			currentUnit = next;
+		}
+
+		currentUnit.isLast--;
+		return nRemaining;
+	}
+
+	public void cutoffRare(final int threshold) {
+		cutoffRare(root, threshold);
+	}
+
+	// prune rare symbols given threshold
+	private void cutoffRare(final Node node, final int threshold) {
+		// Create or retrieve the UNK
+		Node unkUnit = node.getChild(unkSymbolId);
+		final boolean hadUnk = unkUnit != null;
+		if (!hadUnk) {
+			unkUnit = new Node();
+		}
+
+		// For every production that is below the threshold, merge and
+		// recursively cut. Surviving children are compacted in place.
+		int kept = 0;
+		for (int i = 0; i < node.size; i++) {
+			final int production = node.keys[i];
+			final Node currentPos = node.children[i];
+
+			if (currentPos.count <= threshold && production != unkSymbolId) {
+				mergeTrieNodes(currentPos, unkUnit);
+			} else {
+				if (production != unkSymbolId) {
+					cutoffRare(currentPos, threshold);
+				}
+				node.keys[kept] = production;
+				node.children[kept] = currentPos;
+				kept++;
+			}
+		}
+		for (int i = kept; i < node.size; i++) {
+			node.children[i] = null;
+		}
+		node.size = kept;
+
+		if (unkUnit.count > 0) {
+			if (!hadUnk) {
+				node.putChild(unkSymbolId, unkUnit);
+			}
+			cutoffRare(unkUnit, threshold);
+		}
+		node.trim();
+	}
+
+	/**
+	 * Rename every symbol id through the given mapping. The mapping must keep
+	 * the relative order of the ids, so that the child arrays stay sorted.
+	 *
+	 * @param mapping
+	 *            the new id of each old id
+	 */
+	public void remapSymbols(final int[] mapping) {
+		final ArrayDeque<Node> stack = new ArrayDeque<Node>();
+		stack.push(root);
+		while (!stack.isEmpty()) {
+			final Node node = stack.pop();
+			for (int i = 0; i < node.size; i++) {
+				final int newKey = mapping[node.keys[i]];
+				checkArgument(newKey != NO_SYMBOL,
+						"Symbol %s is still in use", node.keys[i]);
+				node.keys[i] = newKey;
+				stack.push(node.children[i]);
+			}
+		}
+	}
+
+	public long sumStartingWith(final int[] prefix, final boolean useUNKs) {
+		checkArgument(prefix.length > 0);
+
+		final Node unit = getTrieNodeForInput(prefix, useUNKs);
+
+		if (unit == null) {
+			return 0;
+		}
+
+		return unit.count - unit.isLast;
+	}
+}
@@ -153,6 +153,16 @@ public class Trie<T extends Comparable<?>> implements Serializable {
 		return unkSymbolId;
 	}
 	
+	/**
+	 * Add all the sequences of the other trie to this one. Nodes of the other
+	 * trie are moved, not copied, so it must not be used afterwards.
+	 *
+	 * @param other
+	 */
+	public void merge(Trie<T> other) {
+		mergeTrieNodes(other.root, root);
+	}
+	
 	private void mergeTrieNodes(Node<T> from, Node<T> to) {
 		
 		checkNotNull(to).count += checkNotNull(from).count;